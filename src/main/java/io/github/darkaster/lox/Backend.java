@@ -0,0 +1,36 @@
+package io.github.darkaster.lox;
+
+import java.util.List;
+
+/*
+ * What programs compiled with --compile, and functions that get hot, are compiled to.
+ * Selected with -Dlox.backend=bytecode|closures.
+ * */
+enum Backend {
+    BYTECODE {
+        @Override
+        CompiledCode load(Interpreter interpreter, List<Stmt> statements) {
+            return BytecodeCompiler.load(interpreter, statements);
+        }
+
+        @Override
+        void compile(Interpreter interpreter, Stmt.Function function, boolean isInitializer) {
+            BytecodeCompiler.compile(interpreter, function, isInitializer);
+        }
+    },
+    CLOSURES {
+        @Override
+        CompiledCode load(Interpreter interpreter, List<Stmt> statements) {
+            return ClosureCompiler.load(interpreter, statements);
+        }
+
+        @Override
+        void compile(Interpreter interpreter, Stmt.Function function, boolean isInitializer) {
+            ClosureCompiler.compile(interpreter, function, isInitializer);
+        }
+    };
+
+    abstract CompiledCode load(Interpreter interpreter, List<Stmt> statements);
+
+    abstract void compile(Interpreter interpreter, Stmt.Function function, boolean isInitializer);
+}
@@ -0,0 +1,163 @@
+package io.github.darkaster.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/*
+ * Runs many scripts in one JVM, each with its own Interpreter.
+ * Scripts run on a fixed pool of threads, one per processor unless a thread count is given. Like the lox-main thread
+ * of a single script, pool threads get a lox.stackSize stack, so the call depth limit decides when recursion fails.
+ * Parsed ASTs are cached by path and modification time, so re-running a batch skips the front end.
+ * With a prelude (the lox.prelude property), the prelude runs once and every script runs in a fork of its interpreter.
+ * */
+public class BatchRunner {
+    private final Map<Path, CachedScript> cache = new ConcurrentHashMap<>();
+    private final int threads;
+    // Interpreter that ran the prelude, or null.
+    private final Interpreter prelude;
+
+    public BatchRunner(int threads) {
+        this(threads, null);
+    }
+
+    public BatchRunner(int threads, Interpreter prelude) {
+        this.threads = threads;
+        this.prelude = prelude;
+    }
+
+    static int main(String[] args) throws IOException {
+        Path dir = Paths.get(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+        List<Path> scripts;
+        try (Stream<Path> files = Files.walk(dir)) {
+            scripts = files.filter(path -> path.toString().endsWith(".lox")).sorted().toList();
+        }
+
+        Interpreter prelude = null;
+        String preludePath = System.getProperty("lox.prelude");
+        if (preludePath != null) {
+            Path path = Paths.get(preludePath);
+            prelude = new Interpreter(BufferedSink.of(System.out));
+            prelude.setDirectory(path.toAbsolutePath().getParent());
+            Lox.resetStatus(System.err);
+            List<Stmt> statements = Lox.parse(Files.readString(path, Charset.defaultCharset()), Lox.lazyFunctions());
+            if (statements != null) Lox.execute(prelude, statements);
+            if (Lox.exitCode() != 0) return Lox.exitCode();
+        }
+
+        long start = System.nanoTime();
+        List<Result> results = new BatchRunner(threads, prelude).run(scripts);
+        long elapsed = System.nanoTime() - start;
+
+        int exitCode = 0;
+        int failed = 0;
+        for (Result result : results) {
+            String memory = result.peakMemory() < 0 ? "" : ", peak %d KB".formatted(result.peakMemory() / 1024);
+            System.out.printf("== %s (exit %d, %.2f ms%s)%n", result.path(), result.status(), result.nanos() / 1e6, memory);
+            System.out.print(result.out());
+            System.err.print(result.err());
+            if (result.status() != 0) failed++;
+            exitCode = Math.max(exitCode, result.status());
+        }
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("Ran %d scripts in %.2f ms (%.1f scripts/s), %d failed.%n",
+                results.size(), elapsed / 1e6, results.size() / seconds, failed);
+        return exitCode;
+    }
+
+    public List<Result> run(List<Path> scripts) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = task -> new Thread(null, task, "lox-batch-" + count.incrementAndGet(), Lox.STACK_SIZE);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), factory);
+
+        try (executor) {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Path script : scripts) {
+                futures.add(executor.submit(() -> runScript(script)));
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Batch run interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Batch script failed", e.getCause());
+        }
+    }
+
+    private Result runScript(Path path) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PrintStream errStream = new PrintStream(err, true);
+        long start = System.nanoTime();
+        MemoryAccount memory = MemoryAccount.fromProperties();
+
+        Lox.resetStatus(errStream);
+        try {
+            List<Stmt> statements = load(path);
+            if (statements != null) {
+                Interpreter interpreter = prelude == null
+                        ? new Interpreter(BufferedSink.of(out))
+                        : prelude.fork(BufferedSink.of(out));
+                interpreter.setDirectory(path.toAbsolutePath().getParent());
+                interpreter.setMaxCallDepth(Integer.getInteger("lox.maxCallDepth", Interpreter.DEFAULT_MAX_CALL_DEPTH));
+                interpreter.setBudget(ExecutionBudget.fromProperties());
+                interpreter.setMemoryAccount(memory);
+                Lox.execute(interpreter, statements);
+            }
+        } catch (IOException e) {
+            errStream.println("Could not read " + path + ": " + e.getMessage());
+            return new Result(path, 66, out.toString(), err.toString(), System.nanoTime() - start, -1);
+        } catch (RuntimeException | Error e) {
+            // A bug in the interpreter fails this script only, not the whole batch.
+            e.printStackTrace(errStream);
+            return new Result(path, 70, out.toString(), err.toString(), System.nanoTime() - start, -1);
+        }
+
+        long peakMemory = memory == null ? -1 : memory.peak();
+        return new Result(path, Lox.exitCode(), out.toString(), err.toString(), System.nanoTime() - start, peakMemory);
+    }
+
+    private List<Stmt> load(Path path) throws IOException {
+        FileTime modified = Files.getLastModifiedTime(path);
+        CachedScript cached = cache.get(path);
+        if (cached != null && cached.modified().equals(modified)) return cached.statements();
+
+        String source = new String(Files.readAllBytes(path), Charset.defaultCharset());
+        List<Stmt> statements = Lox.parse(source, Lox.lazyFunctions());
+        // Scripts with syntax errors are not cached so that every run reports them.
+        if (statements != null) cache.put(path, new CachedScript(modified, statements));
+        return statements;
+    }
+
+    // peakMemory is in bytes, or -1 when lox.maxMemory isn't set.
+    public record Result(Path path, int status, String out, String err, long nanos, long peakMemory) {
+    }
+
+    private record CachedScript(FileTime modified, List<Stmt> statements) {
+    }
+}
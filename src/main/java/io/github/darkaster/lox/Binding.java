@@ -0,0 +1,37 @@
+package io.github.darkaster.lox;
+
+/*
+ * Where the resolver placed a variable.
+ * Locals that no nested function captures live in a slot of the per-call frame array.
+ * Captured locals live in a heap Environment, found by hopping up the enclosing chain.
+ * Globals are bound directly to their cell in the interpreter's global table.
+ * */
+final class Binding {
+    final int slot;
+    final int hops;
+    final String name;
+    final GlobalCell cell;
+
+    private Binding(int slot, int hops, String name, GlobalCell cell) {
+        this.slot = slot;
+        this.hops = hops;
+        this.name = name;
+        this.cell = cell;
+    }
+
+    static Binding frame(int slot, String name) {
+        return new Binding(slot, -1, name, null);
+    }
+
+    static Binding environment(int hops, String name) {
+        return new Binding(-1, hops, name, null);
+    }
+
+    static Binding global(GlobalCell cell) {
+        return new Binding(-1, -1, cell.name, cell);
+    }
+
+    boolean inFrame() {
+        return slot >= 0;
+    }
+}
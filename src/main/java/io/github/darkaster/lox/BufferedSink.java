@@ -0,0 +1,100 @@
+package io.github.darkaster.lox;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/*
+ * OutputSink backed by a plain char array.
+ * Text is handed to the underlying writer only when the buffer fills, on flush(),
+ * or after every line when line flushing is enabled (used by the REPL).
+ * */
+public class BufferedSink implements OutputSink {
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final Writer writer;
+    private final boolean lineFlush;
+    private final char[] buffer;
+    private int count = 0;
+
+    public BufferedSink(Writer writer, int capacity, boolean lineFlush) {
+        this.writer = writer;
+        this.buffer = new char[capacity];
+        this.lineFlush = lineFlush;
+    }
+
+    static BufferedSink stdout(boolean lineFlush) {
+        return new BufferedSink(new OutputStreamWriter(System.out, Charset.defaultCharset()), DEFAULT_CAPACITY, lineFlush);
+    }
+
+    static BufferedSink of(OutputStream stream) {
+        return new BufferedSink(new OutputStreamWriter(stream, Charset.defaultCharset()), DEFAULT_CAPACITY, false);
+    }
+
+    @Override
+    public void print(String text) {
+        int length = text.length();
+        if (length > buffer.length - count) {
+            drain();
+            if (length > buffer.length) {
+                write(text);
+                return;
+            }
+        }
+        text.getChars(0, length, buffer, count);
+        count += length;
+    }
+
+    @Override
+    public void print(char c) {
+        if (count == buffer.length) drain();
+        buffer[count++] = c;
+    }
+
+    @Override
+    public void print(double number) {
+        if (!NumberFormatter.isPlainIntegral(number)) {
+            print(Double.toString(number));
+            return;
+        }
+        if (buffer.length - count < NumberFormatter.MAX_INTEGRAL_CHARS) drain();
+        count = NumberFormatter.writeIntegral(number, buffer, count);
+    }
+
+    @Override
+    public void println() {
+        print('\n');
+        if (lineFlush) flush();
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void drain() {
+        if (count == 0) return;
+        try {
+            writer.write(buffer, 0, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        count = 0;
+    }
+
+    private void write(String text) {
+        try {
+            writer.write(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,811 @@
+package io.github.darkaster.lox;
+
+import org.objectweb.asm.ClassTooLargeException;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/*
+ * Compiles a resolved program, or one hot function, to a JVM class so the JIT sees plain bytecode instead
+ * of the tree walker. Every function declaration (methods included) becomes a static method; when a whole
+ * program is compiled, its top-level code is function 0.
+ * Uncaptured locals become JVM locals, captured ones live in Environments as they do when interpreting,
+ * and each global gets a static field holding its GlobalCell, so compiled and interpreted code share state.
+ * Everything dynamic (calls, properties, classes, untyped operators) goes through the Interpreter's runtime.
+ * Arithmetic and comparisons that TypeInference proved numeric run on unboxed doubles.
+ * */
+final class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static final String CLASS_NAME = "io/github/darkaster/lox/LoxProgram";
+    // The program's source, stored next to the class in a jar; linking re-derives the AST from it.
+    static final String SOURCE_RESOURCE = "LoxProgram.lox";
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String INTERPRETER = "io/github/darkaster/lox/Interpreter";
+    private static final String ENVIRONMENT = "io/github/darkaster/lox/Environment";
+    private static final String GLOBAL_CELL = "io/github/darkaster/lox/GlobalCell";
+    private static final String TOKEN = "io/github/darkaster/lox/Token";
+    private static final String INSTANCE = "io/github/darkaster/lox/LoxInstance";
+    private static final String FUNCTION_DESC = "(Lio/github/darkaster/lox/Interpreter;Lio/github/darkaster/lox/Environment;"
+            + "Lio/github/darkaster/lox/LoxInstance;Ljava/util/List;)Ljava/lang/Object;";
+
+    // JVM locals of a compiled function: its four parameters, the current Environment, then the frame slots.
+    private static final int INTERPRETER_LOCAL = 0;
+    private static final int CLOSURE_LOCAL = 1;
+    private static final int SELF_LOCAL = 2;
+    private static final int ARGUMENTS_LOCAL = 3;
+    private static final int ENVIRONMENT_LOCAL = 4;
+    private static final int FRAME_BASE = 5;
+
+    private final Interpreter interpreter;
+    private final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+        // Every value is an Object as far as the generated code is concerned.
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            return type1.equals(type2) ? type1 : OBJECT;
+        }
+    };
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+    private final Map<GlobalCell, String> globalFields = new LinkedHashMap<>();
+    // Function ids index this list; null stands for the top-level code.
+    private final List<Stmt.Function> functions = new ArrayList<>();
+    private final List<String> methodNames = new ArrayList<>();
+    private final Queue<Pending> pending = new ArrayDeque<>();
+
+    private MethodVisitor method;
+    private boolean isInitializer;
+
+    private BytecodeCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    /*
+     * Compiles the statements, which must have been resolved by the given interpreter, and loads the
+     * result into this JVM. Every function of the program then runs compiled, however it is called.
+     * */
+    static CompiledCode load(Interpreter interpreter, List<Stmt> statements) {
+        BytecodeCompiler compiler = new BytecodeCompiler(interpreter);
+        return compiler.define(compiler.compile(statements));
+    }
+
+    /*
+     * Compiles a function that got hot in the tree walker, along with the functions declared inside it
+     * that are not compiled yet. Closures of the function, existing or future, run the bytecode from their next call.
+     * Throws UnsupportedOperationException for a function too large for a class file.
+     * */
+    static void compile(Interpreter interpreter, Stmt.Function function, boolean isInitializer) {
+        BytecodeCompiler compiler = new BytecodeCompiler(interpreter);
+        compiler.begin();
+        compiler.enqueue(function, isInitializer);
+        byte[] bytes;
+        try {
+            bytes = compiler.finish(false);
+        } catch (MethodTooLargeException | ClassTooLargeException e) {
+            throw new UnsupportedOperationException("Too large to compile: " + function.name.lexeme, e);
+        }
+        compiler.define(bytes);
+    }
+
+    private CompiledCode define(byte[] bytes) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return link(lookup, lookup.lookupClass());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Could not load compiled program", e);
+        }
+    }
+
+    /*
+     * Links a class written by writeJar to a fresh interpreter. The constants the class refers to
+     * (tokens, declarations, global cells) are recomputed by compiling the same source again.
+     * */
+    static CompiledCode link(Interpreter interpreter, List<Stmt> statements, Class<?> compiled) {
+        BytecodeCompiler compiler = new BytecodeCompiler(interpreter);
+        compiler.compile(statements);
+        return compiler.link(MethodHandles.lookup(), compiled);
+    }
+
+    /*
+     * Writes the compiled program, with its source, to a jar whose main class runs it:
+     * java -cp <interpreter classpath>:program.jar io.github.darkaster.lox.LoxProgram
+     * */
+    static void writeJar(Interpreter interpreter, List<Stmt> statements, byte[] source, Path jar) throws IOException {
+        byte[] bytes = new BytecodeCompiler(interpreter).compile(statements);
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, CLASS_NAME.replace('/', '.'));
+        try (OutputStream file = Files.newOutputStream(jar);
+             JarOutputStream out = new JarOutputStream(file, manifest)) {
+            out.putNextEntry(new JarEntry(CLASS_NAME + ".class"));
+            out.write(bytes);
+            out.closeEntry();
+            out.putNextEntry(new JarEntry(CLASS_NAME.substring(0, CLASS_NAME.lastIndexOf('/') + 1) + SOURCE_RESOURCE));
+            out.write(source);
+            out.closeEntry();
+        }
+    }
+
+    private CompiledCode link(MethodHandles.Lookup lookup, Class<?> compiled) {
+        CompiledCode code;
+        try {
+            MethodHandle linker = lookup.findStatic(compiled, "$link", MethodType.methodType(void.class, Object[].class));
+            linker.invoke(constants.toArray());
+            code = (CompiledCode) lookup.findConstructor(compiled, MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not link compiled program", e);
+        }
+
+        for (int id = 0; id < functions.size(); id++) {
+            if (functions.get(id) == null) continue;
+            FunctionLayout layout = interpreter.layout(functions.get(id));
+            layout.codeId = id;
+            layout.code = code;
+        }
+        return code;
+    }
+
+    private byte[] compile(List<Stmt> statements) {
+        begin();
+        functions.add(null);
+        methodNames.add("$script");
+        generateFunction("$script", null, false, statements);
+        return finish(true);
+    }
+
+    private void begin() {
+        writer.visit(V21, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, CLASS_NAME, null, OBJECT,
+                new String[]{"io/github/darkaster/lox/CompiledCode"});
+        writer.visitField(ACC_PRIVATE | ACC_STATIC, "$constants", "[Ljava/lang/Object;", null, null).visitEnd();
+    }
+
+    private byte[] finish(boolean isProgram) {
+        while (!pending.isEmpty()) {
+            Pending next = pending.remove();
+            generateFunction(methodNames.get(next.id), interpreter.layout(next.function), next.isInitializer, next.function.body);
+        }
+
+        generateConstructor();
+        generateInvoke();
+        generateLink();
+        if (isProgram) generateMain();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private void enqueue(Stmt.Function function, boolean isInitializer) {
+        // Closures are created through the Interpreter either way, so an already compiled body can be left alone.
+        if (interpreter.layout(function).code != null) return;
+
+        int id = functions.size();
+        functions.add(function);
+        methodNames.add(function.name.lexeme + "$" + id);
+        pending.add(new Pending(id, function, isInitializer));
+    }
+
+    private void generateFunction(String name, FunctionLayout layout, boolean isInitializer, List<Stmt> body) {
+        method = writer.visitMethod(ACC_PRIVATE | ACC_STATIC, name, FUNCTION_DESC, null, null);
+        this.isInitializer = isInitializer;
+        method.visitCode();
+
+        if (layout != null && layout.hasEnvironment) {
+            newEnvironment(CLOSURE_LOCAL);
+        } else {
+            method.visitVarInsn(ALOAD, CLOSURE_LOCAL);
+            method.visitVarInsn(ASTORE, ENVIRONMENT_LOCAL);
+        }
+        // Slots are always written before they are read, but the verifier needs them initialized.
+        int frameSize = layout != null ? layout.frameSize : interpreter.scriptFrameSize();
+        for (int slot = 0; slot < frameSize; slot++) {
+            method.visitInsn(ACONST_NULL);
+            method.visitVarInsn(ASTORE, FRAME_BASE + slot);
+        }
+        if (layout != null) {
+            if (layout.receiver != null) {
+                method.visitVarInsn(ALOAD, SELF_LOCAL);
+                place(layout.receiver);
+            }
+            for (int i = 0; i < layout.params.length; i++) {
+                method.visitVarInsn(ALOAD, ARGUMENTS_LOCAL);
+                pushInt(i);
+                method.visitMethodInsn(INVOKEINTERFACE, "java/util/List", "get", "(I)Ljava/lang/Object;", true);
+                place(layout.params[i]);
+            }
+        }
+
+        for (Stmt statement : body) {
+            statement.accept(this);
+        }
+        returnDefault();
+
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+    }
+
+    private void returnDefault() {
+        if (isInitializer) {
+            method.visitVarInsn(ALOAD, SELF_LOCAL);
+        } else {
+            method.visitInsn(ACONST_NULL);
+        }
+        method.visitInsn(ARETURN);
+    }
+
+    private void generateConstructor() {
+        MethodVisitor mv = writer.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, OBJECT, "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    // CompiledCode.invoke: a table switch over the function ids.
+    private void generateInvoke() {
+        MethodVisitor mv = writer.visitMethod(ACC_PUBLIC, "invoke", "(I" + FUNCTION_DESC.substring(1), null, null);
+        mv.visitCode();
+        Label unknown = new Label();
+        Label[] cases = new Label[functions.size()];
+        for (int id = 0; id < cases.length; id++) cases[id] = new Label();
+
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitTableSwitchInsn(0, cases.length - 1, unknown, cases);
+        for (int id = 0; id < cases.length; id++) {
+            mv.visitLabel(cases[id]);
+            for (int local = 2; local <= 5; local++) mv.visitVarInsn(ALOAD, local);
+            mv.visitMethodInsn(INVOKESTATIC, CLASS_NAME, methodNames.get(id), FUNCTION_DESC, false);
+            mv.visitInsn(ARETURN);
+        }
+        mv.visitLabel(unknown);
+        mv.visitTypeInsn(NEW, "java/lang/IllegalArgumentException");
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "()V", false);
+        mv.visitInsn(ATHROW);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    // $link(Object[] constants) stores the constants and copies each GlobalCell into its field.
+    private void generateLink() {
+        MethodVisitor mv = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, "$link", "([Ljava/lang/Object;)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(PUTSTATIC, CLASS_NAME, "$constants", "[Ljava/lang/Object;");
+        for (Map.Entry<GlobalCell, String> global : globalFields.entrySet()) {
+            writer.visitField(ACC_PRIVATE | ACC_STATIC, global.getValue(), "L" + GLOBAL_CELL + ";", null, null).visitEnd();
+            mv.visitVarInsn(ALOAD, 0);
+            pushInt(mv, constantIndexes.get(global.getKey()));
+            mv.visitInsn(AALOAD);
+            mv.visitTypeInsn(CHECKCAST, GLOBAL_CELL);
+            mv.visitFieldInsn(PUTSTATIC, CLASS_NAME, global.getValue(), "L" + GLOBAL_CELL + ";");
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void generateMain() {
+        MethodVisitor mv = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V", null, null);
+        mv.visitCode();
+        mv.visitLdcInsn(Type.getObjectType(CLASS_NAME));
+        mv.visitMethodInsn(INVOKESTATIC, "io/github/darkaster/lox/Lox", "runCompiled", "(Ljava/lang/Class;)V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        Binding binding = interpreter.binding(expr);
+        if (binding.inFrame()) {
+            method.visitInsn(DUP);
+            method.visitVarInsn(ASTORE, FRAME_BASE + binding.slot);
+        } else if (binding.cell != null) {
+            // value value -> value cell token value
+            method.visitInsn(DUP);
+            loadGlobalCell(binding.cell);
+            method.visitInsn(SWAP);
+            loadConstant(expr.name, TOKEN);
+            method.visitInsn(SWAP);
+            method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+            method.visitMethodInsn(INVOKEVIRTUAL, GLOBAL_CELL, "assign", "(L" + TOKEN + ";Ljava/lang/Object;L" + INTERPRETER + ";)V", false);
+        } else {
+            // value value -> value env hops token value
+            method.visitInsn(DUP);
+            method.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+            method.visitInsn(SWAP);
+            pushInt(binding.hops);
+            method.visitInsn(SWAP);
+            loadConstant(expr.name, TOKEN);
+            method.visitInsn(SWAP);
+            method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+            method.visitMethodInsn(INVOKEVIRTUAL, ENVIRONMENT, "assignAt", "(IL" + TOKEN + ";Ljava/lang/Object;L" + INTERPRETER + ";)V", false);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (expr.operandType == LoxType.NUMBER) {
+            if (isArithmetic(expr)) {
+                compileDouble(expr);
+                method.visitMethodInsn(INVOKESTATIC, DOUBLE, "valueOf", "(D)Ljava/lang/Double;", false);
+            } else {
+                Label isFalse = new Label();
+                Label end = new Label();
+                branchIfFalse(expr, isFalse);
+                method.visitFieldInsn(GETSTATIC, BOOLEAN, "TRUE", "Ljava/lang/Boolean;");
+                method.visitJumpInsn(GOTO, end);
+                method.visitLabel(isFalse);
+                method.visitFieldInsn(GETSTATIC, BOOLEAN, "FALSE", "Ljava/lang/Boolean;");
+                method.visitLabel(end);
+            }
+            return null;
+        }
+
+        if (expr.operandType == LoxType.STRING && expr.operator.type == TokenType.PLUS) {
+            method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+            loadConstant(expr.operator, TOKEN);
+            compile(expr.left);
+            method.visitTypeInsn(CHECKCAST, "java/lang/String");
+            compile(expr.right);
+            method.visitTypeInsn(CHECKCAST, "java/lang/String");
+            method.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "concat",
+                    "(L" + TOKEN + ";Ljava/lang/String;Ljava/lang/String;)Ljava/lang/String;", false);
+            return null;
+        }
+
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        loadConstant(expr.operator, TOKEN);
+        compile(expr.left);
+        compile(expr.right);
+        method.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "applyBinary",
+                "(L" + TOKEN + ";Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", false);
+        return null;
+    }
+
+    private static boolean isArithmetic(Expr.Binary expr) {
+        return switch (expr.operator.type) {
+            case PLUS, MINUS, STAR, SLASH -> true;
+            default -> false;
+        };
+    }
+
+    // Leaves an unboxed double on the stack; numeric subexpressions are never boxed.
+    private void compileDouble(Expr expr) {
+        if (expr instanceof Expr.Grouping grouping) {
+            compileDouble(grouping.expression);
+        } else if (expr instanceof Expr.Literal literal && literal.value instanceof Double value) {
+            method.visitLdcInsn(value);
+        } else if (expr instanceof Expr.Binary binary && binary.operandType == LoxType.NUMBER && isArithmetic(binary)) {
+            compileDouble(binary.left);
+            compileDouble(binary.right);
+            method.visitInsn(switch (binary.operator.type) {
+                case PLUS -> DADD;
+                case MINUS -> DSUB;
+                case STAR -> DMUL;
+                default -> DDIV;
+            });
+        } else {
+            compile(expr);
+            method.visitTypeInsn(CHECKCAST, DOUBLE);
+            method.visitMethodInsn(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D", false);
+        }
+    }
+
+    /*
+     * Jumps to the label when the condition is falsey. Numeric comparisons branch on the doubles
+     * directly, without producing a Boolean first.
+     * */
+    private void branchIfFalse(Expr condition, Label target) {
+        if (condition instanceof Expr.Grouping grouping) {
+            branchIfFalse(grouping.expression, target);
+            return;
+        }
+        if (condition instanceof Expr.Binary binary && binary.operandType == LoxType.NUMBER && !isArithmetic(binary)) {
+            TokenType type = binary.operator.type;
+            if (type == TokenType.EQUAL_EQUAL || type == TokenType.BANG_EQUAL) {
+                // Same as Double.equals: NaN equals itself, 0 and -0 differ.
+                compileDouble(binary.left);
+                method.visitMethodInsn(INVOKESTATIC, DOUBLE, "doubleToLongBits", "(D)J", false);
+                compileDouble(binary.right);
+                method.visitMethodInsn(INVOKESTATIC, DOUBLE, "doubleToLongBits", "(D)J", false);
+                method.visitInsn(LCMP);
+                method.visitJumpInsn(type == TokenType.EQUAL_EQUAL ? IFNE : IFEQ, target);
+                return;
+            }
+            compileDouble(binary.left);
+            compileDouble(binary.right);
+            // Comparisons involving NaN are false, so pick the compare that makes NaN fail the test.
+            switch (type) {
+                case LESS -> {
+                    method.visitInsn(DCMPG);
+                    method.visitJumpInsn(IFGE, target);
+                }
+                case LESS_EQUAL -> {
+                    method.visitInsn(DCMPG);
+                    method.visitJumpInsn(IFGT, target);
+                }
+                case GREATER -> {
+                    method.visitInsn(DCMPL);
+                    method.visitJumpInsn(IFLE, target);
+                }
+                default -> {
+                    method.visitInsn(DCMPL);
+                    method.visitJumpInsn(IFLT, target);
+                }
+            }
+            return;
+        }
+
+        compile(condition);
+        method.visitMethodInsn(INVOKESTATIC, INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z", false);
+        method.visitJumpInsn(IFEQ, target);
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        switch (expr.value) {
+            case null -> method.visitInsn(ACONST_NULL);
+            case String string -> method.visitLdcInsn(string);
+            case Boolean bool -> method.visitFieldInsn(GETSTATIC, BOOLEAN, bool ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+            // Boxed once, at compile time.
+            default -> loadConstant(expr.value, DOUBLE);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        Label end = new Label();
+        compile(expr.left);
+        method.visitInsn(DUP);
+        method.visitMethodInsn(INVOKESTATIC, INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z", false);
+        method.visitJumpInsn(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+        method.visitInsn(POP);
+        compile(expr.right);
+        method.visitLabel(end);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        loadConstant(expr.name, TOKEN);
+        method.visitMethodInsn(INVOKESTATIC, INTERPRETER, "settable", "(Ljava/lang/Object;L" + TOKEN + ";)L" + INSTANCE + ";", false);
+        compile(expr.value);
+        // instance value -> value instance token value
+        method.visitInsn(DUP_X1);
+        loadConstant(expr.name, TOKEN);
+        method.visitInsn(SWAP);
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        method.visitMethodInsn(INVOKEVIRTUAL, INSTANCE, "set", "(L" + TOKEN + ";Ljava/lang/Object;L" + INTERPRETER + ";)V", false);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        load(interpreter.binding(expr), expr.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        method.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+        pushInt(interpreter.binding(expr).hops);
+        method.visitLdcInsn("super");
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        method.visitMethodInsn(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(ILjava/lang/String;L" + INTERPRETER + ";)Ljava/lang/Object;", false);
+        load(interpreter.receiver(expr), expr.keyword);
+        loadConstant(expr.method, TOKEN);
+        method.visitMethodInsn(INVOKESTATIC, INTERPRETER, "superMethod",
+                "(Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)Lio/github/darkaster/lox/LoxFunction;", false);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        compile(expr.object);
+        loadConstant(expr.name, TOKEN);
+        method.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "getProperty", "(Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;", false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        loadConstant(expr.operator, TOKEN);
+        compile(expr.right);
+        method.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "applyUnary", "(L" + TOKEN + ";Ljava/lang/Object;)Ljava/lang/Object;", false);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compileCall(expr, "callValue");
+        return null;
+    }
+
+    private void compileCall(Expr.Call expr, String runtimeMethod) {
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        compile(expr.callee);
+        if (expr.arguments.isEmpty()) {
+            method.visitMethodInsn(INVOKESTATIC, "java/util/List", "of", "()Ljava/util/List;", true);
+        } else {
+            pushInt(expr.arguments.size());
+            method.visitTypeInsn(ANEWARRAY, OBJECT);
+            for (int i = 0; i < expr.arguments.size(); i++) {
+                method.visitInsn(DUP);
+                pushInt(i);
+                compile(expr.arguments.get(i));
+                method.visitInsn(AASTORE);
+            }
+            method.visitMethodInsn(INVOKESTATIC, "java/util/Arrays", "asList", "([Ljava/lang/Object;)Ljava/util/List;", false);
+        }
+        loadConstant(expr.paren, TOKEN);
+        method.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, runtimeMethod,
+                "(Ljava/lang/Object;Ljava/util/List;L" + TOKEN + ";)Ljava/lang/Object;", false);
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        load(interpreter.binding(expr), expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        boolean hasEnvironment = interpreter.hasEnvironment(stmt);
+        if (hasEnvironment) newEnvironment(ENVIRONMENT_LOCAL);
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        if (hasEnvironment) {
+            method.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+            method.visitFieldInsn(GETFIELD, ENVIRONMENT, "enclosing", "L" + ENVIRONMENT + ";");
+            method.visitVarInsn(ASTORE, ENVIRONMENT_LOCAL);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        method.visitInsn(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        enqueue(stmt, false);
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        loadConstant(stmt, "io/github/darkaster/lox/Stmt$Function");
+        method.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+        method.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "newFunction",
+                "(Lio/github/darkaster/lox/Stmt$Function;L" + ENVIRONMENT + ";)Lio/github/darkaster/lox/LoxFunction;", false);
+        place(interpreter.declaration(stmt.name));
+        return null;
+    }
+
+    @Override
+    public Void visitGetterStmt(Stmt.Getter stmt) {
+        return visitFunctionStmt(stmt);
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function function : stmt.functions) {
+            enqueue(function, !(function instanceof Stmt.Getter) && function.name.lexeme.equals("init"));
+        }
+
+        Binding binding = interpreter.declaration(stmt.name);
+        method.visitInsn(ACONST_NULL);
+        place(binding);
+
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        loadConstant(stmt, "io/github/darkaster/lox/Stmt$Class");
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+        } else {
+            method.visitInsn(ACONST_NULL);
+        }
+        method.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+        method.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "createClass",
+                "(Lio/github/darkaster/lox/Stmt$Class;Ljava/lang/Object;L" + ENVIRONMENT + ";)Lio/github/darkaster/lox/LoxClass;", false);
+        place(binding);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label otherwise = new Label();
+        Label end = new Label();
+        branchIfFalse(stmt.condition, otherwise);
+        stmt.thenBranch.accept(this);
+        method.visitJumpInsn(GOTO, end);
+        method.visitLabel(otherwise);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        method.visitLabel(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        compile(stmt.expression);
+        method.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "printValue", "(Ljava/lang/Object;)V", false);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            method.visitInsn(ACONST_NULL);
+        }
+        place(interpreter.declaration(stmt.name));
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        loadConstant(stmt, "io/github/darkaster/lox/Stmt$Import");
+        method.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "importModule",
+                "(Lio/github/darkaster/lox/Stmt$Import;)Ljava/lang/Object;", false);
+        place(interpreter.declaration(stmt.name));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label condition = new Label();
+        Label end = new Label();
+        method.visitLabel(condition);
+        branchIfFalse(stmt.condition, end);
+        stmt.statement.accept(this);
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        loadConstant(stmt.keyword, TOKEN);
+        method.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "step", "(L" + TOKEN + ";)V", false);
+        method.visitJumpInsn(GOTO, condition);
+        method.visitLabel(end);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        // The resolver rejects values returned from initializers.
+        if (isInitializer || stmt.value == null) {
+            returnDefault();
+            return null;
+        }
+        if (interpreter.isTailCall(stmt)) {
+            // Handed back to the LoxFunction.invoke loop as a TailCall, as the interpreter does.
+            compileCall((Expr.Call) stmt.value, "tailCallValue");
+        } else {
+            compile(stmt.value);
+        }
+        method.visitInsn(ARETURN);
+        return null;
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void load(Binding binding, Token name) {
+        if (binding.inFrame()) {
+            method.visitVarInsn(ALOAD, FRAME_BASE + binding.slot);
+        } else if (binding.cell != null) {
+            loadGlobalCell(binding.cell);
+            loadConstant(name, TOKEN);
+            method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+            method.visitMethodInsn(INVOKEVIRTUAL, GLOBAL_CELL, "get", "(L" + TOKEN + ";L" + INTERPRETER + ";)Ljava/lang/Object;", false);
+        } else {
+            method.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+            pushInt(binding.hops);
+            method.visitLdcInsn(name.lexeme);
+            method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+            method.visitMethodInsn(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(ILjava/lang/String;L" + INTERPRETER + ";)Ljava/lang/Object;", false);
+        }
+    }
+
+    // Stores the value on top of the stack wherever the resolver placed the declaration.
+    private void place(Binding binding) {
+        if (binding.inFrame()) {
+            method.visitVarInsn(ASTORE, FRAME_BASE + binding.slot);
+        } else if (binding.cell != null) {
+            loadGlobalCell(binding.cell);
+            method.visitInsn(SWAP);
+            method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+            method.visitMethodInsn(INVOKEVIRTUAL, GLOBAL_CELL, "define", "(Ljava/lang/Object;L" + INTERPRETER + ";)V", false);
+        } else {
+            method.visitVarInsn(ALOAD, ENVIRONMENT_LOCAL);
+            method.visitInsn(SWAP);
+            method.visitLdcInsn(binding.name);
+            method.visitInsn(SWAP);
+            method.visitMethodInsn(INVOKEVIRTUAL, ENVIRONMENT, "define", "(Ljava/lang/String;Ljava/lang/Object;)V", false);
+        }
+    }
+
+    private void newEnvironment(int enclosingLocal) {
+        method.visitVarInsn(ALOAD, INTERPRETER_LOCAL);
+        method.visitVarInsn(ALOAD, enclosingLocal);
+        method.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "newEnvironment", "(L" + ENVIRONMENT + ";)L" + ENVIRONMENT + ";", false);
+        method.visitVarInsn(ASTORE, ENVIRONMENT_LOCAL);
+    }
+
+    private void loadGlobalCell(GlobalCell cell) {
+        String field = globalFields.computeIfAbsent(cell, c -> {
+            constant(c);
+            return "global$" + c.index + "$" + c.name;
+        });
+        method.visitFieldInsn(GETSTATIC, CLASS_NAME, field, "L" + GLOBAL_CELL + ";");
+    }
+
+    private void loadConstant(Object value, String type) {
+        method.visitFieldInsn(GETSTATIC, CLASS_NAME, "$constants", "[Ljava/lang/Object;");
+        pushInt(constant(value));
+        method.visitInsn(AALOAD);
+        method.visitTypeInsn(CHECKCAST, type);
+    }
+
+    private int constant(Object value) {
+        return constantIndexes.computeIfAbsent(value, v -> {
+            constants.add(v);
+            return constants.size() - 1;
+        });
+    }
+
+    private void pushInt(int value) {
+        pushInt(method, value);
+    }
+
+    private static void pushInt(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    private record Pending(int id, Stmt.Function function, boolean isInitializer) {
+    }
+}
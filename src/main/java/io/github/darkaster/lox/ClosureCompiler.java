@@ -0,0 +1,573 @@
+package io.github.darkaster.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/*
+ * Compiles a resolved program, or one hot function, into a tree of pre-linked closures.
+ * Every node is built once: operators, variable locations and argument counts are chosen here, so running
+ * the tree needs neither the visitor's double dispatch nor the interpreter's switch over token types.
+ * Much cheaper to produce than bytecode; the result runs through the same CompiledCode hook.
+ * */
+final class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Node>, Stmt.Visitor<ClosureCompiler.Step> {
+    // An expression.
+    interface Node {
+        Object execute(Frame frame);
+    }
+
+    // A statement; true if it executed a return, whose value is then in frame.result.
+    interface Step {
+        boolean execute(Frame frame);
+    }
+
+    // A condition, tested without boxing a Boolean when it is a numeric comparison.
+    private interface Test {
+        boolean test(Frame frame);
+    }
+
+    // An expression TypeInference proved numeric, evaluated unboxed.
+    private interface NumberNode {
+        double execute(Frame frame);
+    }
+
+    // Where a declaration's value goes.
+    private interface Store {
+        void store(Frame frame, Object value);
+    }
+
+    // State of one call of a compiled function.
+    static final class Frame {
+        final Interpreter interpreter;
+        final Object[] slots;
+        Environment environment;
+        Object result;
+
+        Frame(Interpreter interpreter, Environment environment, Object[] slots) {
+            this.interpreter = interpreter;
+            this.environment = environment;
+            this.slots = slots;
+        }
+    }
+
+    private final Interpreter interpreter;
+    private final List<CompiledFunction> functions = new ArrayList<>();
+    private final List<Stmt.Function> declarations = new ArrayList<>();
+
+    private ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    /*
+     * Compiles the statements, which must have been resolved by the given interpreter.
+     * Every function of the program then runs compiled, however it is called.
+     * */
+    static CompiledCode load(Interpreter interpreter, List<Stmt> statements) {
+        ClosureCompiler compiler = new ClosureCompiler(interpreter);
+        // The top-level code is function 0.
+        int id = compiler.register(null, null);
+        compiler.functions.set(id, new CompiledFunction(null, interpreter.scriptFrameSize(), false, compiler.sequence(statements)));
+        return compiler.link();
+    }
+
+    /*
+     * Compiles a function that got hot in the tree walker, along with the functions declared inside it
+     * that are not compiled yet. Closures of the function, existing or future, run the result from their next call.
+     * */
+    static void compile(Interpreter interpreter, Stmt.Function function, boolean isInitializer) {
+        ClosureCompiler compiler = new ClosureCompiler(interpreter);
+        compiler.compileFunction(function, isInitializer);
+        compiler.link();
+    }
+
+    // Returns the function's id; the top-level code has no declaration.
+    private int register(Stmt.Function declaration, CompiledFunction function) {
+        declarations.add(declaration);
+        functions.add(function);
+        return functions.size() - 1;
+    }
+
+    private CompiledCode link() {
+        Program program = new Program(functions.toArray(new CompiledFunction[0]));
+        for (int id = 0; id < declarations.size(); id++) {
+            if (declarations.get(id) == null) continue;
+            FunctionLayout layout = interpreter.layout(declarations.get(id));
+            layout.codeId = id;
+            layout.code = program;
+        }
+        return program;
+    }
+
+    private void compileFunction(Stmt.Function declaration, boolean isInitializer) {
+        FunctionLayout layout = interpreter.layout(declaration);
+        // Closures are created through the Interpreter either way, so an already compiled body can be left alone.
+        if (layout.code != null) return;
+
+        // Reserve the id first: the body may declare functions of its own.
+        int id = register(declaration, null);
+        functions.set(id, new CompiledFunction(layout, layout.frameSize, isInitializer, sequence(declaration.body)));
+    }
+
+    private record CompiledFunction(FunctionLayout layout, int frameSize, boolean isInitializer, Step body) {
+        Object run(Interpreter interpreter, Environment closure, LoxInstance self, List<Object> arguments) {
+            Environment env = layout != null && layout.hasEnvironment ? interpreter.newEnvironment(closure) : closure;
+            Frame frame = new Frame(interpreter, env, new Object[frameSize]);
+            if (layout != null) {
+                if (layout.receiver != null) LoxFunction.place(layout.receiver, self, env, frame.slots);
+                for (int i = 0; i < layout.params.length; i++) {
+                    LoxFunction.place(layout.params[i], arguments.get(i), env, frame.slots);
+                }
+            }
+
+            boolean returned;
+            interpreter.enterFrame(frame);
+            try {
+                returned = body.execute(frame);
+            } finally {
+                interpreter.exitFrame();
+            }
+            if (isInitializer) return self;
+            return returned ? frame.result : null;
+        }
+    }
+
+    private record Program(CompiledFunction[] functions) implements CompiledCode {
+        @Override
+        public Object invoke(int id, Interpreter interpreter, Environment closure, LoxInstance self, List<Object> arguments) {
+            return functions[id].run(interpreter, closure, self, arguments);
+        }
+    }
+
+    private Node compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Step compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Step sequence(List<Stmt> statements) {
+        Step[] steps = statements.stream().map(this::compile).toArray(Step[]::new);
+        if (steps.length == 1) return steps[0];
+        return frame -> {
+            for (Step step : steps) {
+                if (step.execute(frame)) return true;
+            }
+            return false;
+        };
+    }
+
+    @Override
+    public Node visitAssignExpr(Expr.Assign expr) {
+        Node value = compile(expr.value);
+        Binding binding = interpreter.binding(expr);
+        Token name = expr.name;
+
+        if (binding.inFrame()) {
+            int slot = binding.slot;
+            return frame -> frame.slots[slot] = value.execute(frame);
+        }
+        if (binding.cell != null) {
+            GlobalCell cell = binding.cell;
+            return frame -> {
+                Object result = value.execute(frame);
+                cell.assign(name, result, frame.interpreter);
+                return result;
+            };
+        }
+        int hops = binding.hops;
+        return frame -> {
+            Object result = value.execute(frame);
+            frame.environment.assignAt(hops, name, result, frame.interpreter);
+            return result;
+        };
+    }
+
+    @Override
+    public Node visitBinaryExpr(Expr.Binary expr) {
+        if (expr.operandType == LoxType.NUMBER) {
+            if (isArithmetic(expr)) {
+                NumberNode number = number(expr);
+                return frame -> number.execute(frame);
+            }
+            Test test = test(expr);
+            return frame -> test.test(frame);
+        }
+
+        Node left = compile(expr.left);
+        Node right = compile(expr.right);
+        Token operator = expr.operator;
+        if (expr.operandType == LoxType.STRING && operator.type == TokenType.PLUS) {
+            return frame -> frame.interpreter.concat(operator, (String) left.execute(frame), (String) right.execute(frame));
+        }
+
+        return switch (operator.type) {
+            case EQUAL_EQUAL -> frame -> Objects.equals(left.execute(frame), right.execute(frame));
+            case BANG_EQUAL -> frame -> !Objects.equals(left.execute(frame), right.execute(frame));
+            case LESS -> frame -> {
+                Object a = left.execute(frame);
+                Object b = right.execute(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a < (double) b;
+            };
+            case LESS_EQUAL -> frame -> {
+                Object a = left.execute(frame);
+                Object b = right.execute(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a <= (double) b;
+            };
+            case GREATER -> frame -> {
+                Object a = left.execute(frame);
+                Object b = right.execute(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a > (double) b;
+            };
+            case GREATER_EQUAL -> frame -> {
+                Object a = left.execute(frame);
+                Object b = right.execute(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a >= (double) b;
+            };
+            case MINUS -> frame -> {
+                Object a = left.execute(frame);
+                Object b = right.execute(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a - (double) b;
+            };
+            case STAR -> frame -> {
+                Object a = left.execute(frame);
+                Object b = right.execute(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a * (double) b;
+            };
+            case SLASH -> frame -> {
+                Object a = left.execute(frame);
+                Object b = right.execute(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a / (double) b;
+            };
+            // Mixed string concatenation and the rest keep the interpreter's semantics.
+            default -> frame -> frame.interpreter.applyBinary(operator, left.execute(frame), right.execute(frame));
+        };
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (!(left instanceof Double) || !(right instanceof Double)) {
+            throw new RuntimeError(operator, "Operands must be number");
+        }
+    }
+
+    private static boolean isArithmetic(Expr.Binary expr) {
+        return switch (expr.operator.type) {
+            case PLUS, MINUS, STAR, SLASH -> true;
+            default -> false;
+        };
+    }
+
+    // Numeric subexpressions are never boxed.
+    private NumberNode number(Expr expr) {
+        if (expr instanceof Expr.Grouping grouping) return number(grouping.expression);
+        if (expr instanceof Expr.Literal literal && literal.value instanceof Double value) {
+            double constant = value;
+            return frame -> constant;
+        }
+        if (expr instanceof Expr.Binary binary && binary.operandType == LoxType.NUMBER && isArithmetic(binary)) {
+            NumberNode left = number(binary.left);
+            NumberNode right = number(binary.right);
+            return switch (binary.operator.type) {
+                case PLUS -> frame -> left.execute(frame) + right.execute(frame);
+                case MINUS -> frame -> left.execute(frame) - right.execute(frame);
+                case STAR -> frame -> left.execute(frame) * right.execute(frame);
+                default -> frame -> left.execute(frame) / right.execute(frame);
+            };
+        }
+        Node node = compile(expr);
+        return frame -> (double) node.execute(frame);
+    }
+
+    private Test test(Expr condition) {
+        if (condition instanceof Expr.Grouping grouping) return test(grouping.expression);
+        if (condition instanceof Expr.Binary binary && binary.operandType == LoxType.NUMBER && !isArithmetic(binary)) {
+            NumberNode left = number(binary.left);
+            NumberNode right = number(binary.right);
+            return switch (binary.operator.type) {
+                case LESS -> frame -> left.execute(frame) < right.execute(frame);
+                case LESS_EQUAL -> frame -> left.execute(frame) <= right.execute(frame);
+                case GREATER -> frame -> left.execute(frame) > right.execute(frame);
+                case GREATER_EQUAL -> frame -> left.execute(frame) >= right.execute(frame);
+                // Same as Double.equals: NaN equals itself, 0 and -0 differ.
+                case EQUAL_EQUAL -> frame -> Double.doubleToLongBits(left.execute(frame))
+                        == Double.doubleToLongBits(right.execute(frame));
+                default -> frame -> Double.doubleToLongBits(left.execute(frame))
+                        != Double.doubleToLongBits(right.execute(frame));
+            };
+        }
+        Node node = compile(condition);
+        return frame -> Interpreter.isTruthy(node.execute(frame));
+    }
+
+    @Override
+    public Node visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Node visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return frame -> value;
+    }
+
+    @Override
+    public Node visitLogicalExpr(Expr.Logical expr) {
+        Node left = compile(expr.left);
+        Node right = compile(expr.right);
+        if (expr.operator.type == TokenType.OR) {
+            return frame -> {
+                Object value = left.execute(frame);
+                return Interpreter.isTruthy(value) ? value : right.execute(frame);
+            };
+        }
+        return frame -> {
+            Object value = left.execute(frame);
+            return Interpreter.isTruthy(value) ? right.execute(frame) : value;
+        };
+    }
+
+    @Override
+    public Node visitSetExpr(Expr.Set expr) {
+        Node object = compile(expr.object);
+        Node value = compile(expr.value);
+        Token name = expr.name;
+        return frame -> {
+            LoxInstance instance = Interpreter.settable(object.execute(frame), name);
+            Object result = value.execute(frame);
+            instance.set(name, result, frame.interpreter);
+            return result;
+        };
+    }
+
+    @Override
+    public Node visitThisExpr(Expr.This expr) {
+        return variable(interpreter.binding(expr), expr.keyword);
+    }
+
+    @Override
+    public Node visitSuperExpr(Expr.Super expr) {
+        int hops = interpreter.binding(expr).hops;
+        Node receiver = variable(interpreter.receiver(expr), expr.keyword);
+        Token method = expr.method;
+        return frame -> Interpreter.superMethod(frame.environment.getAt(hops, "super", frame.interpreter), receiver.execute(frame), method);
+    }
+
+    @Override
+    public Node visitGetExpr(Expr.Get expr) {
+        Node object = compile(expr.object);
+        Token name = expr.name;
+        return frame -> frame.interpreter.getProperty(object.execute(frame), name);
+    }
+
+    @Override
+    public Node visitUnaryExpr(Expr.Unary expr) {
+        Node right = compile(expr.right);
+        return switch (expr.operator.type) {
+            case MINUS -> frame -> -(double) right.execute(frame);
+            case BANG -> frame -> !Interpreter.isTruthy(right.execute(frame));
+            default -> frame -> null;
+        };
+    }
+
+    @Override
+    public Node visitCallExpr(Expr.Call expr) {
+        Node callee = compile(expr.callee);
+        Node[] arguments = arguments(expr);
+        Token paren = expr.paren;
+        return frame -> frame.interpreter.callValue(callee.execute(frame), evaluate(arguments, frame), paren);
+    }
+
+    private Node[] arguments(Expr.Call expr) {
+        return expr.arguments.stream().map(this::compile).toArray(Node[]::new);
+    }
+
+    private static List<Object> evaluate(Node[] arguments, Frame frame) {
+        if (arguments.length == 0) return List.of();
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            values[i] = arguments[i].execute(frame);
+        }
+        return Arrays.asList(values);
+    }
+
+    @Override
+    public Node visitVariableExpr(Expr.Variable expr) {
+        return variable(interpreter.binding(expr), expr.name);
+    }
+
+    private Node variable(Binding binding, Token name) {
+        if (binding.inFrame()) {
+            int slot = binding.slot;
+            return frame -> frame.slots[slot];
+        }
+        if (binding.cell != null) {
+            GlobalCell cell = binding.cell;
+            return frame -> cell.get(name, frame.interpreter);
+        }
+        int hops = binding.hops;
+        String lexeme = name.lexeme;
+        return frame -> frame.environment.getAt(hops, lexeme, frame.interpreter);
+    }
+
+    // Stores a declaration's value wherever the resolver placed it.
+    private Store store(Token name) {
+        Binding binding = interpreter.declaration(name);
+        if (binding.inFrame()) {
+            int slot = binding.slot;
+            return (frame, value) -> frame.slots[slot] = value;
+        }
+        if (binding.cell != null) {
+            GlobalCell cell = binding.cell;
+            return (frame, value) -> cell.define(value, frame.interpreter);
+        }
+        String lexeme = binding.name;
+        return (frame, value) -> frame.environment.define(lexeme, value);
+    }
+
+    @Override
+    public Step visitBlockStmt(Stmt.Block stmt) {
+        Step body = sequence(stmt.statements);
+        if (!interpreter.hasEnvironment(stmt)) return body;
+        return frame -> {
+            Environment enclosing = frame.environment;
+            frame.environment = frame.interpreter.newEnvironment(enclosing);
+            // A return ends the call, so the environment only needs restoring on the way out.
+            if (body.execute(frame)) return true;
+            frame.environment = enclosing;
+            return false;
+        };
+    }
+
+    @Override
+    public Step visitExpressionStmt(Stmt.Expression stmt) {
+        Node expression = compile(stmt.expression);
+        return frame -> {
+            expression.execute(frame);
+            return false;
+        };
+    }
+
+    @Override
+    public Step visitFunctionStmt(Stmt.Function stmt) {
+        compileFunction(stmt, false);
+        Store store = store(stmt.name);
+        return frame -> {
+            store.store(frame, frame.interpreter.newFunction(stmt, frame.environment));
+            return false;
+        };
+    }
+
+    @Override
+    public Step visitGetterStmt(Stmt.Getter stmt) {
+        return visitFunctionStmt(stmt);
+    }
+
+    @Override
+    public Step visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.functions) {
+            compileFunction(method, !(method instanceof Stmt.Getter) && method.name.lexeme.equals("init"));
+        }
+
+        Store store = store(stmt.name);
+        Node superclass = stmt.superclass != null ? compile(stmt.superclass) : frame -> null;
+        return frame -> {
+            store.store(frame, null);
+            Object value = superclass.execute(frame);
+            store.store(frame, frame.interpreter.createClass(stmt, value, frame.environment));
+            return false;
+        };
+    }
+
+    @Override
+    public Step visitIfStmt(Stmt.If stmt) {
+        Test condition = test(stmt.condition);
+        Step thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return frame -> condition.test(frame) && thenBranch.execute(frame);
+        }
+        Step elseBranch = compile(stmt.elseBranch);
+        return frame -> condition.test(frame) ? thenBranch.execute(frame) : elseBranch.execute(frame);
+    }
+
+    @Override
+    public Step visitPrintStmt(Stmt.Print stmt) {
+        Node expression = compile(stmt.expression);
+        return frame -> {
+            frame.interpreter.printValue(expression.execute(frame));
+            return false;
+        };
+    }
+
+    @Override
+    public Step visitVarStmt(Stmt.Var stmt) {
+        Store store = store(stmt.name);
+        if (stmt.initializer == null) {
+            return frame -> {
+                store.store(frame, null);
+                return false;
+            };
+        }
+        Node initializer = compile(stmt.initializer);
+        return frame -> {
+            store.store(frame, initializer.execute(frame));
+            return false;
+        };
+    }
+
+    @Override
+    public Step visitImportStmt(Stmt.Import stmt) {
+        Store store = store(stmt.name);
+        return frame -> {
+            store.store(frame, frame.interpreter.importModule(stmt));
+            return false;
+        };
+    }
+
+    @Override
+    public Step visitWhileStmt(Stmt.While stmt) {
+        Test condition = test(stmt.condition);
+        Step body = compile(stmt.statement);
+        Token keyword = stmt.keyword;
+        return frame -> {
+            while (condition.test(frame)) {
+                if (body.execute(frame)) return true;
+                frame.interpreter.step(keyword);
+            }
+            return false;
+        };
+    }
+
+    @Override
+    public Step visitReturnStmt(Stmt.Return stmt) {
+        if (interpreter.isTailCall(stmt)) {
+            // Handed back to the LoxFunction.invoke loop as a TailCall, as the interpreter does.
+            Expr.Call call = (Expr.Call) stmt.value;
+            Node callee = compile(call.callee);
+            Node[] arguments = arguments(call);
+            Token paren = call.paren;
+            return frame -> {
+                frame.result = frame.interpreter.tailCallValue(callee.execute(frame), evaluate(arguments, frame), paren);
+                return true;
+            };
+        }
+        if (stmt.value == null) {
+            return frame -> {
+                frame.result = null;
+                return true;
+            };
+        }
+        Node value = compile(stmt.value);
+        return frame -> {
+            frame.result = value.execute(frame);
+            return true;
+        };
+    }
+}
@@ -0,0 +1,11 @@
+package io.github.darkaster.lox;
+
+import java.util.List;
+
+/*
+ * A program compiled by BytecodeCompiler. Each compiled function has an id, 0 being the top-level code;
+ * invoke runs one with the given closure, receiver ("this", or null) and arguments.
+ * */
+public interface CompiledCode {
+    Object invoke(int id, Interpreter interpreter, Environment closure, LoxInstance self, List<Object> arguments);
+}
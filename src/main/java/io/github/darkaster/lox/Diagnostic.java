@@ -0,0 +1,12 @@
+package io.github.darkaster.lox;
+
+/*
+ * A syntax or resolution error, kept instead of printed while Lox is collecting errors.
+ * Errors about a token carry its offset and length; scanner errors only know their line, and have offset -1.
+ * where is the " at 'token'" part of the printed error, if any.
+ * */
+record Diagnostic(int line, int offset, int length, String where, String message) {
+    Diagnostic moved(int offsetDelta, int lineDelta) {
+        return new Diagnostic(line + lineDelta, offset < 0 ? offset : offset + offsetDelta, length, where, message);
+    }
+}
@@ -1,18 +1,28 @@
 package io.github.darkaster.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
 
 public class Environment {
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private final ValueTable values = new ValueTable();
+    // Static link array: display[i] is the ancestor at nesting depth i, display[depth] is this.
+    private final Environment[] display;
+    private final int depth;
+    // Captured by code of an interpreter that has been forked: its forks read it, but keep what they assign.
+    boolean shared = false;
 
     public Environment() {
         this.enclosing = null;
+        this.depth = 0;
+        this.display = new Environment[]{this};
     }
 
     public Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        this.depth = enclosing.depth + 1;
+        this.display = Arrays.copyOf(enclosing.display, depth + 1);
+        this.display[depth] = this;
     }
 
     public void define(Token name, Object value) {
@@ -24,10 +34,7 @@ public class Environment {
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
+        if (values.replace(name.lexeme, value)) return;
 
         if (enclosing != null) {
             enclosing.assign(name, value);
@@ -38,26 +45,41 @@ public class Environment {
     }
 
     public Object get(Token name) {
-        if (values.containsKey(name.lexeme)) return values.get(name.lexeme);
+        Object value = values.get(name.lexeme);
+        if (value != ValueTable.ABSENT) return value;
 
         if (enclosing != null) return enclosing.get(name);
 
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
-    public Object getAt(Integer distance, String name) {
-        return ancestor(distance).values.get(name);
+    int size() {
+        return values.size();
+    }
+
+    void forEach(BiConsumer<String, Object> action) {
+        values.forEach(action);
     }
 
-    private Environment ancestor(Integer distance) {
-        Environment env = this;
-        for (int i = 0; i < distance; i++) {
-            env = env.enclosing;
+    public Object getAt(int distance, String name, Interpreter context) {
+        Environment target = ancestor(distance);
+        if (target.shared) {
+            Object value = context.overridden(target, name);
+            if (value != ValueTable.ABSENT) return value;
         }
-        return env;
+        return target.values.get(name);
     }
 
-    public void assignAt(Integer distance, Token name, Object value) {
-        ancestor(distance).assign(name, value);
+    private Environment ancestor(int distance) {
+        return display[depth - distance];
+    }
+
+    public void assignAt(int distance, Token name, Object value, Interpreter context) {
+        Environment target = ancestor(distance);
+        if (target.shared) {
+            context.override(target, name.lexeme, value);
+            return;
+        }
+        target.values.put(name.lexeme, value);
     }
 }
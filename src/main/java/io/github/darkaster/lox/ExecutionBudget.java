@@ -0,0 +1,85 @@
+package io.github.darkaster.lox;
+
+import java.time.Duration;
+
+/*
+ * Limits on the work a script may do, for running untrusted code: steps (loop iterations and calls), wall-clock
+ * time and allocations (instances, closures, classes and strings built at runtime). Going over any of them, or
+ * being cancelled from another thread, fails the script with a RuntimeError at the next step.
+ * The step limit is exact; the clock and cancellation are only looked at every CHECK_INTERVAL steps, which keeps
+ * a step down to an increment and a compare. Zero or null means no limit.
+ * A budget belongs to one running script: only cancel() may be called from other threads.
+ * */
+public final class ExecutionBudget {
+    private static final int CHECK_INTERVAL = 1024;
+
+    private final long maxSteps;
+    private final long maxAllocations;
+    private final long timeoutNanos;
+    private final long deadline;
+    private volatile boolean cancelled = false;
+    private long steps = 0;
+    private long allocations = 0;
+    // Step count at which check() runs next.
+    private long nextCheck;
+
+    // The clock starts now.
+    public ExecutionBudget(long maxSteps, Duration timeout, long maxAllocations) {
+        this.maxSteps = maxSteps;
+        this.maxAllocations = maxAllocations;
+        this.timeoutNanos = timeout == null ? 0 : timeout.toNanos();
+        this.deadline = System.nanoTime() + timeoutNanos;
+        this.nextCheck = nextCheck();
+    }
+
+    /*
+     * The budget set by the lox.maxSteps, lox.timeout (milliseconds) and lox.maxAllocations properties,
+     * or null if none of them is set.
+     * */
+    static ExecutionBudget fromProperties() {
+        long maxSteps = Long.getLong("lox.maxSteps", 0);
+        long timeout = Long.getLong("lox.timeout", 0);
+        long maxAllocations = Long.getLong("lox.maxAllocations", 0);
+        if (maxSteps == 0 && timeout == 0 && maxAllocations == 0) return null;
+        return new ExecutionBudget(maxSteps, timeout == 0 ? null : Duration.ofMillis(timeout), maxAllocations);
+    }
+
+    // Stops the script at its next check; safe to call from any thread.
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    public long allocations() {
+        return allocations;
+    }
+
+    void step(Token where) {
+        if (++steps >= nextCheck) check(where);
+    }
+
+    void allocate(Token where) {
+        if (++allocations > maxAllocations && maxAllocations > 0) {
+            throw new RuntimeError(where, "Allocation budget of " + maxAllocations + " objects exceeded.");
+        }
+    }
+
+    private void check(Token where) {
+        if (maxSteps > 0 && steps > maxSteps) {
+            throw new RuntimeError(where, "Step budget of " + maxSteps + " steps exceeded.");
+        }
+        if (cancelled) throw new RuntimeError(where, "Script cancelled.");
+        if (timeoutNanos > 0 && System.nanoTime() - deadline > 0) {
+            throw new RuntimeError(where, "Script timed out after " + Duration.ofNanos(timeoutNanos).toMillis() + " ms.");
+        }
+        nextCheck = nextCheck();
+    }
+
+    private long nextCheck() {
+        long next = steps + CHECK_INTERVAL;
+        return maxSteps > 0 ? Math.min(next, maxSteps + 1) : next;
+    }
+}
@@ -50,6 +50,8 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        // Set by TypeInference when both operands are proven to be of this type.
+        LoxType operandType = LoxType.UNKNOWN;
 
         public Binary(Expr left, Token operator, Expr right) {
             this.left = left;
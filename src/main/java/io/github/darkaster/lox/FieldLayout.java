@@ -0,0 +1,67 @@
+package io.github.darkaster.lox;
+
+import java.util.Arrays;
+
+/*
+ * Field name to index mapping shared by every instance of a class.
+ * The layout is learned from field assignments (usually the ones in init) and only grows,
+ * so an index handed out once stays valid for all instances.
+ * A frozen layout belongs to a class shared with forked interpreters and no longer grows: forks running at the
+ * same time read it unlocked, so fields they add are kept by the instance instead (see LoxInstance.set).
+ * */
+final class FieldLayout {
+    boolean frozen = false;
+    private String[] names = new String[4];
+    private int[] indexes = new int[4];
+    // Names in index order.
+    private String[] order = new String[4];
+    private int count = 0;
+
+    int size() {
+        return count;
+    }
+
+    int indexOf(String name) {
+        int mask = names.length - 1;
+        for (int i = name.hashCode() & mask; ; i = (i + 1) & mask) {
+            String candidate = names[i];
+            if (candidate == null) return -1;
+            if (candidate == name || candidate.equals(name)) return indexes[i];
+        }
+    }
+
+    String name(int index) {
+        return order[index];
+    }
+
+    int add(String name) {
+        if ((count + 1) * 4 > names.length * 3) grow();
+        insert(name, count);
+        if (count == order.length) order = Arrays.copyOf(order, count * 2);
+        order[count] = name;
+        return count++;
+    }
+
+    private void insert(String name, int index) {
+        int mask = names.length - 1;
+        int i = name.hashCode() & mask;
+        while (names[i] != null) i = (i + 1) & mask;
+        names[i] = name;
+        indexes[i] = index;
+    }
+
+    private void grow() {
+        String[] oldNames = names;
+        int[] oldIndexes = indexes;
+        names = new String[oldNames.length * 2];
+        indexes = new int[oldIndexes.length * 2];
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) insert(oldNames[i], oldIndexes[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(names);
+    }
+}
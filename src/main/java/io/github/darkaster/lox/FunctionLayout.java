@@ -0,0 +1,29 @@
+package io.github.darkaster.lox;
+
+/*
+ * Resolver output for a function body: how big its frame is, whether a call
+ * needs its own Environment for captured locals, and where "this" (for methods)
+ * and each parameter go.
+ * */
+final class FunctionLayout {
+    final int frameSize;
+    final boolean hasEnvironment;
+    final Binding receiver;
+    final Binding[] params;
+    // Set once the body is compiled to bytecode; every closure of the function then runs that instead.
+    // Forks share their base's layouts, so codeId is written first and code published last.
+    volatile CompiledCode code;
+    int codeId;
+    // Tiered execution: calls and loop iterations seen while interpreted, shared by every closure of the function.
+    int invocations;
+    int backEdges;
+    // Cleared if compiling failed; the function then stays in the tree walker.
+    boolean compilable = true;
+
+    FunctionLayout(int frameSize, boolean hasEnvironment, Binding receiver, Binding[] params) {
+        this.frameSize = frameSize;
+        this.hasEnvironment = hasEnvironment;
+        this.receiver = receiver;
+        this.params = params;
+    }
+}
@@ -0,0 +1,49 @@
+package io.github.darkaster.lox;
+
+/*
+ * Storage for one global variable. References are bound to their cell at resolve time,
+ * which may be before the global is defined, so reads still check for a late definition.
+ * */
+final class GlobalCell {
+    final String name;
+    final int index;
+    Object value;
+    boolean defined = false;
+    // Once the interpreter owning the cell has been forked: where each fork keeps its own value of it. -1 before.
+    int slot = -1;
+
+    GlobalCell(String name, int index) {
+        this.name = name;
+        this.index = index;
+    }
+
+    Object get(Token token) {
+        if (!defined) throw new RuntimeError(token, "Undefined variable '" + name + "'.");
+        return value;
+    }
+
+    void assign(Token token, Object value) {
+        if (!defined) throw new RuntimeError(token, "Undefined variable '" + name + "'.");
+        this.value = value;
+    }
+
+    void define(Object value) {
+        this.value = value;
+        this.defined = true;
+    }
+
+    // Access from code running in an interpreter, which for a shared cell may be a fork with a value of its own.
+    Object get(Token token, Interpreter context) {
+        return slot < 0 ? get(token) : context.sharedGlobal(this, token);
+    }
+
+    void assign(Token token, Object value, Interpreter context) {
+        if (slot < 0) assign(token, value);
+        else context.assignShared(this, token, value);
+    }
+
+    void define(Object value, Interpreter context) {
+        if (slot < 0) define(value);
+        else context.defineShared(this, value);
+    }
+}
@@ -0,0 +1,45 @@
+package io.github.darkaster.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Indexed table of global variables. Cells are created on first mention, either by a
+ * definition or by a reference the resolver could not bind to a local.
+ * */
+final class Globals {
+    private final Map<String, GlobalCell> byName = new HashMap<>();
+    private final List<GlobalCell> cells = new ArrayList<>();
+    // A fork's globals start out as its base's, whose table is never added to.
+    private final Globals base;
+
+    Globals() {
+        this(null);
+    }
+
+    Globals(Globals base) {
+        this.base = base;
+    }
+
+    GlobalCell cell(String name) {
+        GlobalCell cell = byName.get(name);
+        if (cell == null && base != null) cell = base.byName.get(name);
+        if (cell == null) {
+            cell = new GlobalCell(name, cells.size());
+            byName.put(name, cell);
+            cells.add(cell);
+        }
+        return cell;
+    }
+
+    void define(String name, Object value) {
+        cell(name).define(value);
+    }
+
+    // The table's own cells, without a base's.
+    List<GlobalCell> cells() {
+        return cells;
+    }
+}
@@ -1,17 +1,201 @@
 package io.github.darkaster.lox;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    Environment globals = new Environment();
-    private Environment environment = globals;
+    static final int DEFAULT_MAX_CALL_DEPTH = 10_000;
+    static final int DEFAULT_INVOCATION_THRESHOLD = 1_000;
+    static final int DEFAULT_BACK_EDGE_THRESHOLD = 10_000;
+    // Kept function bodies below which forget() doesn't look for unreachable ones.
+    private static final int MIN_KEPT_BODIES = 64;
+
+    final Globals globals;
+    /*
+     * The interpreter this one was forked from, or null. Forks share the base's globals, values and resolution
+     * read-only: each fork keeps its own values of the base's globals once it assigns them (in overrides, by
+     * GlobalCell.slot), and of the fields of the base's instances and the variables its closures captured
+     * (in copies, by instance or environment and then name).
+     * */
+    private final Interpreter base;
+    private Object[] overrides;
+    private IdentityHashMap<Object, ValueTable> copies;
+    // Set once this interpreter has been forked; it can't run code after that.
+    private volatile boolean frozen = false;
+    private int sharedSlots = 0;
+    // Root of every closure chain; top-level declarations go to globals instead.
+    private Environment environment = new Environment();
+    // Slots of uncaptured locals for the function (or top-level code) being executed.
+    private Object[] frame = new Object[0];
+    private int scriptFrameSize = 0;
     private boolean isReplMode = false;
-    private Map<Expr, Integer> locals = new HashMap<>();
+    // Nested Lox calls currently active; tail calls don't count.
+    private int callDepth = 0;
+    private int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+    // Tiered execution: a function is compiled to bytecode once it has been called, or has looped, this often.
+    // Zero leaves everything in the tree walker.
+    private int invocationThreshold = 0;
+    private int backEdgeThreshold = 0;
+    private Backend backend = Backend.BYTECODE;
+    // With a memory account, the environments and frames of the blocks and compiled calls in progress, for roots().
+    private final ArrayList<Object> activeFrames = new ArrayList<>();
+    // The interpreted function whose body is executing, or null at the top level.
+    private LoxFunction running;
+    private Map<Expr, Binding> locals = new HashMap<>();
+    private Map<Token, Binding> declarations = new HashMap<>();
+    private Map<Expr.Super, Binding> receivers = new HashMap<>();
+    private Map<Stmt.Function, FunctionLayout> functions = new HashMap<>();
+    private Set<Stmt.Block> blocksWithEnvironment = new HashSet<>();
+    private Set<Stmt.Return> tailCalls = new HashSet<>();
+    // Function bodies forget() kept resolved for closures that may still run, and how many were left by the last check.
+    private List<Stmt.Function> keptBodies = new ArrayList<>();
+    private int liveBodies = 0;
+    // Top-level functions whose bodies are parsed and resolved on first call, with the globals they resolve against.
+    private final Map<Stmt.Function, Globals> deferred = new HashMap<>();
+    private OutputSink out;
+    // Limits for the running script, or null when it may run unchecked.
+    private ExecutionBudget budget;
+    // Approximate heap usage of this interpreter's values, or null when it isn't tracked.
+    private MemoryAccount memory;
+    // Directory that import paths are relative to: the running script's, or the loading module's.
+    private Path directory = Path.of("").toAbsolutePath();
+    // Modules imported so far, by absolute path; each loads once per interpreter.
+    private final Map<Path, LoxModule> modules = new HashMap<>();
 
     Interpreter() {
+        this(BufferedSink.stdout(false));
+    }
+
+    Interpreter(OutputSink out) {
+        this.out = out;
+        this.base = null;
+        this.globals = new Globals();
+        defineNatives(globals);
+    }
+
+    private Interpreter(Interpreter base, OutputSink out) {
+        this.out = out;
+        this.base = base;
+        this.globals = new Globals(base.globals);
+        this.sharedSlots = base.sharedSlots;
+        this.maxCallDepth = base.maxCallDepth;
+        this.invocationThreshold = base.invocationThreshold;
+        this.backEdgeThreshold = base.backEdgeThreshold;
+        this.backend = base.backend;
+        this.directory = base.directory;
+    }
+
+    /*
+     * A new interpreter starting from this one's state, for running a request on top of a prepared prelude without
+     * running the prelude again. Nothing is copied: the first fork freezes this interpreter, which can't run code
+     * from then on, and the fork reads its globals and values until it assigns globals of its own.
+     * Forks may run on different threads at the same time.
+     * */
+    public synchronized Interpreter fork(OutputSink out) {
+        if (base != null) throw new IllegalStateException("Can't fork a fork.");
+        if (!frozen) freeze();
+        return new Interpreter(this, out);
+    }
+
+    private void freeze() {
+        // A fork resolving a deferred body would put its resolution where other forks can't see it.
+        for (Stmt.Function function : List.copyOf(deferred.keySet())) {
+            try {
+                materialize(function);
+            } catch (RuntimeError error) {
+                // Reported again by every call of the function.
+            }
+        }
+
+        ArrayDeque<Object> unshared = new ArrayDeque<>();
+        unshared.add(environment);
+        List<Globals> tables = new ArrayList<>(List.of(globals));
+        for (LoxModule module : modules.values()) tables.add(module.globals);
+        for (Globals table : tables) {
+            for (GlobalCell cell : table.cells()) {
+                cell.slot = sharedSlots++;
+                if (cell.value != null) unshared.add(cell.value);
+            }
+        }
+        while (!unshared.isEmpty()) share(unshared.poll(), unshared);
+        frozen = true;
+    }
+
+    // Marks what can be changed in place, instances and environments, as shared, and queues what it refers to.
+    private static void share(Object value, ArrayDeque<Object> unshared) {
+        if (value instanceof Environment environment) {
+            if (environment.shared) return;
+            environment.shared = true;
+            environment.forEach((name, local) -> {
+                if (local != null) unshared.add(local);
+            });
+            if (environment.enclosing != null) unshared.add(environment.enclosing);
+        } else if (value instanceof LoxInstance instance) {
+            if (instance.shared) return;
+            instance.shared = true;
+            instance.fields((name, field) -> {
+                if (field != null) unshared.add(field);
+            });
+            if (instance instanceof LoxClass klass) {
+                klass.layout.frozen = true;
+                unshared.addAll(klass.methods());
+            }
+            else unshared.add(instance.klass());
+        } else if (value instanceof LoxFunction function) {
+            unshared.add(function.closure);
+            if (function.receiver != null) unshared.add(function.receiver);
+        } else if (value instanceof MemoizedFunction memoized) {
+            unshared.add(memoized.function());
+        }
+    }
+
+    Object sharedGlobal(GlobalCell cell, Token token) {
+        if (overrides != null) {
+            Object value = overrides[cell.slot];
+            if (value != ValueTable.ABSENT) return value;
+        }
+        return cell.get(token);
+    }
+
+    void assignShared(GlobalCell cell, Token token, Object value) {
+        // Fails for a global nobody has defined.
+        if (overrides == null || overrides[cell.slot] == ValueTable.ABSENT) cell.get(token);
+        defineShared(cell, value);
+    }
+
+    void defineShared(GlobalCell cell, Object value) {
+        if (overrides == null) {
+            overrides = new Object[sharedSlots];
+            Arrays.fill(overrides, ValueTable.ABSENT);
+        }
+        overrides[cell.slot] = value;
+    }
+
+    // This fork's value of a field or captured variable of the base's, or ABSENT if it has assigned none.
+    Object overridden(Object owner, String name) {
+        if (copies == null) return ValueTable.ABSENT;
+        ValueTable values = copies.get(owner);
+        return values == null ? ValueTable.ABSENT : values.get(name);
+    }
+
+    void override(Object owner, String name, Object value) {
+        if (copies == null) copies = new IdentityHashMap<>();
+        copies.computeIfAbsent(owner, key -> new ValueTable()).put(name, value);
+    }
+
+    // Every global table gets the natives: the interpreter's own and each module's.
+    private static void defineNatives(Globals globals) {
         globals.define("clock", new LoxCallable() {
             @Override
             public int arity() {
@@ -23,6 +207,42 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 return (double) System.currentTimeMillis();
             }
 
+            @Override
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+        globals.define("memoize", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (arguments.get(0) instanceof LoxCallable function) {
+                    return new MemoizedFunction(function, MemoizedFunction.DEFAULT_CAPACITY);
+                }
+                throw new RuntimeError(null, "Can only memoize functions.");
+            }
+
+            @Override
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+        globals.define("memoStats", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (arguments.get(0) instanceof MemoizedFunction function) return function.stats();
+                throw new RuntimeError(null, "Expected a memoized function.");
+            }
+
             @Override
             public String toString() {
                 return "<native fn>";
@@ -31,15 +251,40 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     void interpret(List<Stmt> statements) {
+        checkNotFrozen();
+        frame = new Object[scriptFrameSize];
+        callDepth = 0;
         try {
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError error) {
+            // Keep program output ahead of the error report.
+            out.flush();
+            Lox.runtimeError(error);
+        } finally {
+            out.flush();
+        }
+    }
+
+    // Runs a program compiled by BytecodeCompiler; function 0 is its top-level code.
+    void interpret(CompiledCode program) {
+        checkNotFrozen();
+        callDepth = 0;
+        try {
+            program.invoke(0, this, environment, null, null);
+        } catch (RuntimeError error) {
+            out.flush();
             Lox.runtimeError(error);
+        } finally {
+            out.flush();
         }
     }
 
+    private void checkNotFrozen() {
+        if (frozen) throw new IllegalStateException("An interpreter can't run code once it has been forked.");
+    }
+
     private void execute(Stmt statement) {
         statement.accept(this);
     }
@@ -48,11 +293,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitAssignExpr(Expr.Assign expr) {
         var value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        Binding binding = binding(expr);
+        if (binding.inFrame()) {
+            frame[binding.slot] = value;
+        } else if (binding.cell != null) {
+            binding.cell.assign(expr.name, value, this);
         } else {
-            globals.assign(expr.name, value);
+            environment.assignAt(binding.hops, expr.name, value, this);
         }
 
         return value;
@@ -60,38 +307,47 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (expr.operandType == LoxType.NUMBER) return numericBinary(expr);
+
         var left = evaluate(expr.left);
         var right = evaluate(expr.right);
+        if (expr.operandType == LoxType.STRING && expr.operator.type == TokenType.PLUS) {
+            return concat(expr.operator, (String) left, (String) right);
+        }
 
-        return switch (expr.operator.type) {
+        return applyBinary(expr.operator, left, right);
+    }
+
+    Object applyBinary(Token operator, Object left, Object right) {
+        return switch (operator.type) {
             case EQUAL_EQUAL -> isEqual(left, right);
             case BANG_EQUAL -> !isEqual(left, right);
             case GREATER -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left > (double) right;
             }
             case GREATER_EQUAL -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left >= (double) right;
             }
             case LESS -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left < (double) right;
             }
             case LESS_EQUAL -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left <= (double) right;
             }
             case MINUS -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left - (double) right;
             }
             case SLASH -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left / (double) right;
             }
             case STAR -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 yield (double) left * (double) right;
             }
             case AND -> (boolean) left && (boolean) right;
@@ -99,23 +355,44 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             case BANG -> !isTruthy(left);
             case PLUS -> {
                 if (left instanceof String && right instanceof String) {
-                    yield left + (String) right;
+                    yield concat(operator, (String) left, (String) right);
                 }
 
                 if (left instanceof String || right instanceof String) {
-                    yield left.toString() + right.toString();
+                    yield concat(operator, left.toString(), right.toString());
                 }
 
 
                 if (left instanceof Double && right instanceof Double) {
                     yield (Double) left + (Double) right;
                 }
-                throw new RuntimeError(expr.operator, "Operands must be number or string");
+                throw new RuntimeError(operator, "Operands must be number or string");
             }
             default -> null;
         };
     }
 
+    // Operands are proven numbers, so no checks are needed.
+    private Object numericBinary(Expr.Binary expr) {
+        double left = (double) evaluate(expr.left);
+        double right = (double) evaluate(expr.right);
+
+        return switch (expr.operator.type) {
+            case PLUS -> left + right;
+            case MINUS -> left - right;
+            case STAR -> left * right;
+            case SLASH -> left / right;
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+            case LESS -> left < right;
+            case LESS_EQUAL -> left <= right;
+            // Same as Double.equals, which isEqual uses: NaN equals itself, 0 and -0 differ.
+            case EQUAL_EQUAL -> Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+            case BANG_EQUAL -> Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+            default -> null;
+        };
+    }
+
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return evaluate(expr.expression);
@@ -141,15 +418,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSetExpr(Expr.Set expr) {
-        var object = evaluate(expr.object);
-
-        if (object instanceof LoxInstance loxInstance) {
-            var value = evaluate(expr.value);
-            loxInstance.set(expr.name, value);
-            return value;
-        }
+        LoxInstance loxInstance = settable(evaluate(expr.object), expr.name);
+        var value = evaluate(expr.value);
+        loxInstance.set(expr.name, value, this);
+        return value;
+    }
 
-        throw new RuntimeError(expr.name, "Only instances can be set");
+    // Checked before the value is evaluated.
+    static LoxInstance settable(Object object, Token name) {
+        if (object instanceof LoxInstance loxInstance) return loxInstance;
+        throw new RuntimeError(name, "Only instances can be set");
     }
 
     @Override
@@ -159,37 +437,50 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        int distance = binding(expr).hops;
+        LoxClass superclass = (LoxClass) environment.getAt(distance, "super", this);
+
+        Binding receiver = receiver(expr);
+        Object object = receiver.inFrame()
+                ? frame[receiver.slot]
+                : environment.getAt(receiver.hops, "this", this);
+        return superMethod(superclass, object, expr.method);
+    }
+
+    static LoxFunction superMethod(Object superclass, Object object, Token name) {
+        LoxFunction method = ((LoxClass) superclass).findMethod(name.lexeme);
 
         if (method == null) {
-            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
         }
-
-        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
-        return method.bind(object);
+        return method.bind((LoxInstance) object);
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        var object = evaluate(expr.object);
+        return getProperty(evaluate(expr.object), expr.name);
+    }
+
+    Object getProperty(Object object, Token name) {
         if (object instanceof LoxInstance loxInstance) {
-            Object member = loxInstance.get(expr.name);
+            Object member = loxInstance.get(name, this);
             if (member instanceof LoxGetter function) {
                 return function.call(this);
             }
             return member;
         }
 
-        throw new RuntimeError(expr.name, "Only instances have properties");
+        if (object instanceof LoxModule module) return module.get(name, this);
+        throw new RuntimeError(name, "Only instances have properties");
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        var right = evaluate(expr.right);
+        return applyUnary(expr.operator, evaluate(expr.right));
+    }
 
-        return switch (expr.operator.type) {
+    Object applyUnary(Token operator, Object right) {
+        return switch (operator.type) {
             case MINUS -> -(double) right;
             case BANG -> !isTruthy(right);
             default -> null;
@@ -200,15 +491,62 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
         List<Object> arguments = expr.arguments.stream().map(this::evaluate).toList();
+        return callValue(callee, arguments, expr.paren);
+    }
+
+    Object callValue(Object callee, List<Object> arguments, Token paren) {
+        LoxCallable function = checkCallable(paren, callee, arguments);
+        if (callDepth >= maxCallDepth) {
+            throw new RuntimeError(paren, "Stack overflow: more than %d nested calls.".formatted(maxCallDepth));
+        }
+
+        callDepth++;
+        try {
+            return function.call(this, arguments);
+        } catch (RuntimeError error) {
+            // Native functions don't know where they were called from.
+            if (error.token == null) error = error.at(paren);
+            error.addFrame(function, paren);
+            throw error;
+        } catch (StackOverflowError overflow) {
+            // The JVM stack ran out before the configured depth; fail the script, not the process.
+            // Nothing here may need much stack: no formatting, no class loading.
+            RuntimeError error = new RuntimeError(paren, "Stack overflow: Java stack exhausted.");
+            error.addFrame(function, paren);
+            throw error;
+        } finally {
+            callDepth--;
+        }
+    }
+
+    /*
+     * Evaluates a call in tail position. Lox functions are not entered here: the LoxFunction.invoke
+     * loop of the function returning runs them instead, so tail recursion uses no Java stack.
+     * */
+    private Object tailCall(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
+        List<Object> arguments = expr.arguments.stream().map(this::evaluate).toList();
+        return tailCallValue(callee, arguments, expr.paren);
+    }
+
+    Object tailCallValue(Object callee, List<Object> arguments, Token paren) {
+        if (callee instanceof LoxFunction function && !function.isInitializer) {
+            checkCallable(paren, callee, arguments);
+            return new TailCall(function, arguments);
+        }
+        // Natives and classes run as ordinary calls, for the depth check and the error's place in the trace.
+        return callValue(callee, arguments, paren);
+    }
 
+    private LoxCallable checkCallable(Token paren, Object callee, List<Object> arguments) {
         if (callee instanceof LoxCallable function) {
             if (arguments.size() != function.arity()) {
-                throw new RuntimeError(expr.paren, "Expected %d arguments but got %d.".formatted(function.arity(), arguments.size()));
+                throw new RuntimeError(paren, "Expected %d arguments but got %d.".formatted(function.arity(), arguments.size()));
             }
-            return function.call(this, arguments);
+            return function;
         }
 
-        throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+        throw new RuntimeError(paren, "Can only call functions and classes.");
     }
 
     @Override
@@ -217,14 +555,86 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     private Object lookupVariable(Token name, Expr expr) {
-        var distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+        Binding binding = binding(expr);
+        if (binding.inFrame()) return frame[binding.slot];
+        if (binding.cell != null) return binding.cell.get(name, this);
+        return environment.getAt(binding.hops, name.lexeme, this);
+    }
+
+    // Stores the value of a declaration wherever the resolver placed it.
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        defineVariable(stmt.name, importModule(stmt));
+        return null;
+    }
+
+    /*
+     * Returns the namespace of the module, loading it on its first import: it is resolved against globals of its
+     * own and its top level runs like a script in the module's directory. A module imported again while it is
+     * still loading (an import cycle) is returned as is, with only the names it has defined so far.
+     * */
+    Object importModule(Stmt.Import stmt) {
+        String file = (String) stmt.path.literal;
+        if (!file.endsWith(".lox")) file += ".lox";
+        Path path = directory.resolve(file).normalize();
+        LoxModule module = modules.get(path);
+        if (module == null && base != null) module = base.modules.get(path);
+        if (module != null) return module;
+
+        List<Stmt> statements;
+        try {
+            statements = ModuleCache.parse(path);
+        } catch (IOException e) {
+            throw new RuntimeError(stmt.path, "Could not read module " + path + ".");
+        }
+        Globals moduleGlobals = new Globals();
+        defineNatives(moduleGlobals);
+        if (statements == null || !Lox.prepare(this, statements, moduleGlobals)) {
+            throw new RuntimeError(stmt.path, "Module " + path + " has errors.");
+        }
+        module = new LoxModule(stmt.name.lexeme, moduleGlobals, statements);
+        modules.put(path, module);
+
+        Path enclosingDirectory = directory;
+        Environment enclosingEnvironment = environment;
+        Object[] enclosingFrame = frame;
+        LoxFunction enclosingRunning = running;
+        boolean enclosingReplMode = isReplMode;
+        directory = path.getParent();
+        environment = new Environment();
+        frame = new Object[scriptFrameSize];
+        running = null;
+        isReplMode = false;
+        try {
+            for (Stmt statement : statements) {
+                execute(statement);
+            }
+        } catch (RuntimeError error) {
+            // Let a later import try again rather than see a half-loaded module.
+            modules.remove(path);
+            throw error;
+        } finally {
+            directory = enclosingDirectory;
+            environment = enclosingEnvironment;
+            frame = enclosingFrame;
+            running = enclosingRunning;
+            isReplMode = enclosingReplMode;
         }
-        return environment.get(name);
+        return module;
     }
 
-    private boolean isTruthy(Object value) {
+    private void defineVariable(Token name, Object value) {
+        Binding binding = declaration(name);
+        if (binding.inFrame()) {
+            frame[binding.slot] = value;
+        } else if (binding.cell != null) {
+            binding.cell.define(value, this);
+        } else {
+            environment.define(name, value);
+        }
+    }
+
+    static boolean isTruthy(Object value) {
         if (value == null) return false;
         if (value instanceof Boolean) return (boolean) value;
         return true;
@@ -234,7 +644,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private boolean isEqual(Object a, Object b) {
+    private static boolean isEqual(Object a, Object b) {
         return Objects.equals(a, b);
     }
 
@@ -249,92 +659,134 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     private String stringify(Object object) {
         if (object == null) return "nil";
 
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
+        if (object instanceof Double number) return NumberFormatter.toString(number);
 
         return object.toString();
     }
 
+    void printValue(Object value) {
+        if (value instanceof Double number) {
+            out.print((double) number);
+        } else {
+            out.print(stringify(value));
+        }
+        out.println();
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        if (!hasEnvironment(stmt)) {
+            for (Stmt statement : stmt.statements) {
+                execute(statement);
+            }
+            return null;
+        }
+        executeBlock(stmt.statements, newEnvironment(environment), frame);
         return null;
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    void executeBody(LoxFunction function, Environment environment, Object[] frame) {
+        LoxFunction caller = running;
+        running = function;
+        try {
+            executeBlock(function.declaration.body, environment, frame);
+        } finally {
+            running = caller;
+        }
+    }
+
+    void executeBlock(List<Stmt> statements, Environment environment, Object[] frame) {
         Environment previous = this.environment;
+        Object[] previousFrame = this.frame;
+        enterFrame(environment);
+        enterFrame(frame);
         try {
             this.environment = environment;
+            this.frame = frame;
 
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } finally {
             this.environment = previous;
+            this.frame = previousFrame;
+            exitFrame();
+            exitFrame();
         }
     }
 
+    // What a call or block in progress holds, while a memory account may need to measure it.
+    void enterFrame(Object frame) {
+        if (memory != null) activeFrames.add(frame);
+    }
+
+    void exitFrame() {
+        if (memory != null) activeFrames.remove(activeFrames.size() - 1);
+    }
+
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
         Object value = evaluate(stmt.expression);
         // store the value
         if (isReplMode) {
-            System.out.println(stringify(value));
+            printValue(value);
         }
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxCallable function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name, function);
+        defineVariable(stmt.name, newFunction(stmt, environment));
         return null;
     }
 
+    LoxFunction newFunction(Stmt.Function stmt, Environment closure) {
+        allocate(stmt.name, MemoryAccount.FUNCTION_BYTES);
+        return new LoxFunction(stmt, layout(stmt), closure, false);
+    }
+
     @Override
     public Void visitGetterStmt(Stmt.Getter stmt) {
-        LoxCallable function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name, function);
+        defineVariable(stmt.name, newFunction(stmt, environment));
         return null;
     }
 
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
-        environment.define(stmt.name, null);
+        defineVariable(stmt.name, null);
+        Object superclass = stmt.superclass != null ? evaluate(stmt.superclass) : null;
+        defineVariable(stmt.name, createClass(stmt, superclass, environment));
+        return null;
+    }
+
+    // The superclass expression has already been evaluated, after the class name was declared.
+    LoxClass createClass(Stmt.Class stmt, Object superclassValue, Environment closure) {
+        allocate(stmt.name, MemoryAccount.CLASS_BYTES + stmt.functions.size() * MemoryAccount.FUNCTION_BYTES);
         LoxClass superclass = null;
 
         if (stmt.superclass != null) {
-            if (environment.get(stmt.superclass.name) instanceof LoxClass superClazz) {
+            if (superclassValue instanceof LoxClass superClazz) {
                 superclass = superClazz;
-                environment = new Environment(environment);
-                environment.define("super", superclass);
+                closure = newEnvironment(closure);
+                closure.define("super", superclass);
             } else {
-                new RuntimeError(stmt.superclass.name, "Can only extend class");
+                throw new RuntimeError(stmt.superclass.name, "Can only extend class");
             }
         }
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.functions) {
-            methods.put(method.name.lexeme, createLoxFunction(method));
+            methods.put(method.name.lexeme, createLoxFunction(method, closure));
         }
 
-        LoxClass clazz = new LoxClass(stmt.name, methods, superclass);
-
-        if (superclass != null) environment = environment.enclosing;
-        environment.define(stmt.name, clazz);
-        return null;
+        return new LoxClass(stmt.name, methods, superclass);
     }
 
-    private LoxFunction createLoxFunction(Stmt.Function method) {
+    private LoxFunction createLoxFunction(Stmt.Function method, Environment closure) {
         if (method instanceof Stmt.Getter getter) {
-            return new LoxGetter(getter, environment);
+            return new LoxGetter(getter, layout(getter), closure);
         }
-        return new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+        return new LoxFunction(method, layout(method), closure, method.name.lexeme.equals("init"));
     }
 
     @Override
@@ -349,7 +801,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        printValue(value);
         return null;
     }
 
@@ -361,10 +813,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initializer);
 
         }
-        environment.define(stmt.name, value);
+        defineVariable(stmt.name, value);
 
         if (isReplMode) {
-            System.out.println(stringify(value));
+            printValue(value);
         }
         return null;
     }
@@ -373,12 +825,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Void visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
             execute(stmt.statement);
+            step(stmt.keyword);
+            // The running call finishes in the tree walker; the next one runs compiled.
+            if (running != null && backEdgeThreshold > 0 && ++running.layout.backEdges == backEdgeThreshold) {
+                tierUp(running);
+            }
         }
         return null;
     }
 
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
+        if (isTailCall(stmt)) throw new Return(tailCall((Expr.Call) stmt.value));
+
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
@@ -389,7 +848,302 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         this.isReplMode = isReplMode;
     }
 
-    public void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    public void setMaxCallDepth(int maxCallDepth) {
+        this.maxCallDepth = maxCallDepth;
+    }
+
+    /*
+     * Enables tiered execution: functions called invocationThreshold times, or whose loops ran
+     * backEdgeThreshold iterations, are compiled to bytecode. Zero disables the respective counter.
+     * */
+    public void setCompileThresholds(int invocationThreshold, int backEdgeThreshold) {
+        this.invocationThreshold = invocationThreshold;
+        this.backEdgeThreshold = backEdgeThreshold;
+    }
+
+    // Applies to everything run from now on; null removes the limits.
+    public void setBudget(ExecutionBudget budget) {
+        this.budget = budget;
+    }
+
+    ExecutionBudget budget() {
+        return budget;
+    }
+
+    // Applies from now on, to values created before as well; null stops tracking.
+    public void setMemoryAccount(MemoryAccount memory) {
+        this.memory = memory;
+    }
+
+    public MemoryAccount memoryAccount() {
+        return memory;
+    }
+
+    // Where the values a script can still reach are held: globals, imported modules and the running code's locals.
+    void roots(MemoryAccount.Meter meter) {
+        meter.add(globals);
+        // A fork is charged for the values it has of the base's globals, not for the base's.
+        if (overrides != null) {
+            for (Object value : overrides) {
+                if (value != ValueTable.ABSENT) meter.add(value);
+            }
+        }
+        if (copies != null) {
+            for (ValueTable values : copies.values()) values.forEach((name, value) -> meter.add(value));
+        }
+        for (LoxModule module : modules.values()) meter.add(module);
+        meter.add(environment);
+        meter.add(frame);
+        meter.add(running);
+        // Callers waiting on a call still hold their locals.
+        for (Object active : activeFrames) {
+            if (active instanceof Object[] slots) {
+                meter.add(slots);
+            } else if (active instanceof ClosureCompiler.Frame compiled) {
+                meter.add(compiled.slots);
+                meter.add(compiled.environment);
+            } else {
+                meter.add(active);
+            }
+        }
+    }
+
+    // Called at every loop back-edge and function entry, in every tier.
+    void step(Token where) {
+        if (budget != null) budget.step(where);
+    }
+
+    void allocate(Token where, long bytes) {
+        if (budget != null) budget.allocate(where);
+        if (memory != null) memory.charge(this, where, bytes);
+    }
+
+    String concat(Token operator, String left, String right) {
+        allocate(operator, MemoryAccount.stringBytes(left.length() + right.length()));
+        return left.concat(right);
+    }
+
+    Environment newEnvironment(Environment enclosing) {
+        if (memory != null) memory.add(MemoryAccount.ENVIRONMENT_BYTES);
+        return new Environment(enclosing);
+    }
+
+    void setDirectory(Path directory) {
+        this.directory = directory.toAbsolutePath();
+    }
+
+    /*
+     * The backend code is compiled with. Bytecode keeps locals in JVM locals, where the memory meter can't see
+     * them, so with a memory account code is compiled to closures, whose frames it walks.
+     * */
+    Backend backend() {
+        return memory != null ? Backend.CLOSURES : backend;
+    }
+
+    void setBackend(Backend backend) {
+        this.backend = backend;
+    }
+
+    void countInvocation(LoxFunction function) {
+        if (invocationThreshold > 0 && ++function.layout.invocations == invocationThreshold) tierUp(function);
+    }
+
+    private void tierUp(LoxFunction function) {
+        FunctionLayout layout = function.layout;
+        // Forks running at the same time may both find a shared function hot.
+        synchronized (layout) {
+            if (layout.code != null || !layout.compilable) return;
+            compile(function, layout);
+        }
+    }
+
+    private void compile(LoxFunction function, FunctionLayout layout) {
+        try {
+            backend().compile(this, function.declaration, function.isInitializer);
+        } catch (NoClassDefFoundError e) {
+            // No bytecode library on the classpath: stop trying.
+            invocationThreshold = 0;
+            backEdgeThreshold = 0;
+        } catch (UnsupportedOperationException e) {
+            // What the backends throw for code they can't compile; keep interpreting this function.
+            // Anything else is a compiler bug and fails the script.
+            layout.compilable = false;
+        }
+    }
+
+    public void setOutput(OutputSink out) {
+        this.out = out;
+    }
+
+    void resolve(Expr expr, Binding binding) {
+        locals.put(expr, binding);
+    }
+
+    void resolveReceiver(Expr.Super expr, Binding binding) {
+        receivers.put(expr, binding);
+    }
+
+    void declare(Token name, Binding binding) {
+        declarations.put(name, binding);
+    }
+
+    void resolveFunction(Stmt.Function function, FunctionLayout layout) {
+        functions.put(function, layout);
+    }
+
+    void deferFunction(Stmt.Function function, Globals globals) {
+        deferred.put(function, globals);
+    }
+
+    /*
+     * Layout of a function, first parsing and resolving its body if that was deferred.
+     * A body with errors reports them and fails the call, and is tried again by the next one.
+     * */
+    FunctionLayout materialize(Stmt.Function function) {
+        FunctionLayout layout = layout(function);
+        if (layout != null) return layout;
+
+        // Errors in the body are reported now, so keep the program's output ahead of them.
+        out.flush();
+        if (Parser.parseDeferred(function) == null) {
+            throw new RuntimeError(function.name, "Function '" + function.name.lexeme + "' has errors.");
+        }
+        Resolver resolver = new Resolver(this, deferred.containsKey(function) || base == null
+                ? deferred.get(function) : base.deferred.get(function));
+        resolver.resolveDeferred(function);
+        if (Lox.hadError()) {
+            functions.remove(function);
+            throw new RuntimeError(function.name, "Function '" + function.name.lexeme + "' has errors.");
+        }
+        new TypeInference(resolver.declarations()).infer(List.of(function));
+        deferred.remove(function);
+        return functions.get(function);
+    }
+
+    void resolveBlock(Stmt.Block block, boolean hasEnvironment) {
+        if (hasEnvironment) blocksWithEnvironment.add(block);
+    }
+
+    void resolveTailCall(Stmt.Return stmt) {
+        tailCalls.add(stmt);
+    }
+
+    // Code resolved in several parts (REPL lines, ProgramModel units) shares one frame, sized for the largest.
+    void resolveScript(int frameSize) {
+        scriptFrameSize = Math.max(scriptFrameSize, frameSize);
+    }
+
+    /*
+     * Forgets the resolution of statements that will not run again, keeping function bodies if
+     * closures created from them may still be called. Kept bodies are forgotten in turn once none of
+     * their closures can be reached, checked whenever their number has doubled since the last check.
+     * */
+    void forget(List<Stmt> statements, boolean keepFunctionBodies) {
+        new ResolutionSweeper(this, function -> keepFunctionBodies, keptBodies).sweep(statements);
+        if (keptBodies.size() >= Math.max(MIN_KEPT_BODIES, 2 * liveBodies)) forgetUnreachableBodies();
+    }
+
+    private void forgetUnreachableBodies() {
+        Set<Stmt.Function> reachable = reachableFunctions();
+        List<Stmt.Function> kept = keptBodies;
+        keptBodies = new ArrayList<>();
+        ResolutionSweeper sweeper = new ResolutionSweeper(this, reachable::contains, keptBodies);
+        for (Stmt.Function function : kept) sweeper.sweepFunction(function);
+        liveBodies = keptBodies.size();
+    }
+
+    // Declarations of the functions and methods reachable from the globals and the root environment.
+    private Set<Stmt.Function> reachableFunctions() {
+        Set<Stmt.Function> reachable = new HashSet<>();
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.add(environment);
+        List<Globals> tables = new ArrayList<>(List.of(globals));
+        for (LoxModule module : modules.values()) tables.add(module.globals);
+        for (Globals table : tables) {
+            for (GlobalCell cell : table.cells()) pending.add(cell.value == null ? ValueTable.ABSENT : cell.value);
+        }
+        while (!pending.isEmpty()) {
+            Object value = pending.poll();
+            if (!seen.add(value)) continue;
+            if (value instanceof Environment environment) {
+                environment.forEach((name, local) -> {
+                    if (local != null) pending.add(local);
+                });
+                if (environment.enclosing != null) pending.add(environment.enclosing);
+            } else if (value instanceof LoxInstance instance) {
+                instance.fields((name, field) -> {
+                    if (field != null) pending.add(field);
+                });
+                if (instance instanceof LoxClass klass) pending.addAll(klass.methods());
+                else pending.add(instance.klass());
+            } else if (value instanceof LoxFunction function) {
+                reachable.add(function.declaration);
+                pending.add(function.closure);
+                if (function.receiver != null) pending.add(function.receiver);
+            } else if (value instanceof MemoizedFunction memoized) {
+                pending.add(memoized.function());
+            }
+        }
+        return reachable;
+    }
+
+    void unresolve(Expr expr) {
+        locals.remove(expr);
+        if (expr instanceof Expr.Super superExpr) receivers.remove(superExpr);
+    }
+
+    void unresolve(Token name) {
+        declarations.remove(name);
+    }
+
+    void unresolve(Stmt.Function function) {
+        functions.remove(function);
+    }
+
+    void unresolve(Stmt.Block block) {
+        blocksWithEnvironment.remove(block);
+    }
+
+    void unresolve(Stmt.Return stmt) {
+        tailCalls.remove(stmt);
+    }
+
+    // A fork resolves its own code into its own tables and finds the base's code in the base's.
+    Binding binding(Expr expr) {
+        Binding binding = locals.get(expr);
+        return binding != null || base == null ? binding : base.locals.get(expr);
+    }
+
+    Binding declaration(Token name) {
+        Binding binding = declarations.get(name);
+        return binding != null || base == null ? binding : base.declarations.get(name);
+    }
+
+    Binding receiver(Expr.Super expr) {
+        Binding binding = receivers.get(expr);
+        return binding != null || base == null ? binding : base.receivers.get(expr);
+    }
+
+    // The root environment while no code is running.
+    Environment environment() {
+        return environment;
+    }
+
+    FunctionLayout layout(Stmt.Function function) {
+        FunctionLayout layout = functions.get(function);
+        return layout != null || base == null ? layout : base.functions.get(function);
+    }
+
+    boolean hasEnvironment(Stmt.Block block) {
+        return blocksWithEnvironment.contains(block) || base != null && base.blocksWithEnvironment.contains(block);
+    }
+
+    boolean isTailCall(Stmt.Return stmt) {
+        return tailCalls.contains(stmt) || base != null && base.tailCalls.contains(stmt);
+    }
+
+    int scriptFrameSize() {
+        return scriptFrameSize;
     }
 }
@@ -0,0 +1,203 @@
+package io.github.darkaster.lox;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Just enough JSON for the language server's protocol.
+ * Objects read as LinkedHashMaps, arrays as Lists, integers as Longs and other numbers as Doubles.
+ * */
+final class Json {
+    private final String text;
+    private int current = 0;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    static Object parse(String text) {
+        Json json = new Json(text);
+        Object value = json.value();
+        json.skipWhitespace();
+        if (json.current != text.length()) throw json.error("Unexpected trailing characters.");
+        return value;
+    }
+
+    static String write(Object value) {
+        StringBuilder out = new StringBuilder();
+        write(value, out);
+        return out.toString();
+    }
+
+    private Object value() {
+        skipWhitespace();
+        if (current >= text.length()) throw error("Unexpected end of input.");
+        char c = text.charAt(current);
+        return switch (c) {
+            case '{' -> object();
+            case '[' -> array();
+            case '"' -> string();
+            case 't' -> literal("true", Boolean.TRUE);
+            case 'f' -> literal("false", Boolean.FALSE);
+            case 'n' -> literal("null", null);
+            default -> {
+                if (c == '-' || Character.isDigit(c)) yield number();
+                throw error("Unexpected character '" + c + "'.");
+            }
+        };
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> object = new LinkedHashMap<>();
+        current++;
+        skipWhitespace();
+        if (match('}')) return object;
+        do {
+            skipWhitespace();
+            if (!check('"')) throw error("Expected a member name.");
+            String name = string();
+            skipWhitespace();
+            if (!match(':')) throw error("Expected ':' after member name.");
+            object.put(name, value());
+            skipWhitespace();
+        } while (match(','));
+        if (!match('}')) throw error("Expected '}' after object.");
+        return object;
+    }
+
+    private List<Object> array() {
+        List<Object> array = new ArrayList<>();
+        current++;
+        skipWhitespace();
+        if (match(']')) return array;
+        do {
+            array.add(value());
+            skipWhitespace();
+        } while (match(','));
+        if (!match(']')) throw error("Expected ']' after array.");
+        return array;
+    }
+
+    private String string() {
+        current++;
+        StringBuilder out = new StringBuilder();
+        while (true) {
+            if (current >= text.length()) throw error("Unterminated string.");
+            char c = text.charAt(current++);
+            if (c == '"') return out.toString();
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+            if (current >= text.length()) throw error("Unterminated string.");
+            char escape = text.charAt(current++);
+            switch (escape) {
+                case 'b' -> out.append('\b');
+                case 'f' -> out.append('\f');
+                case 'n' -> out.append('\n');
+                case 'r' -> out.append('\r');
+                case 't' -> out.append('\t');
+                case 'u' -> {
+                    if (current + 4 > text.length()) throw error("Invalid unicode escape.");
+                    out.append((char) Integer.parseInt(text.substring(current, current + 4), 16));
+                    current += 4;
+                }
+                default -> out.append(escape);
+            }
+        }
+    }
+
+    private Object number() {
+        int start = current;
+        boolean integral = true;
+        if (check('-')) current++;
+        while (current < text.length()) {
+            char c = text.charAt(current);
+            if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') integral = false;
+            else if (!Character.isDigit(c)) break;
+            current++;
+        }
+        String number = text.substring(start, current);
+        try {
+            return integral ? (Object) Long.parseLong(number) : (Object) Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw error("Invalid number '" + number + "'.");
+        }
+    }
+
+    private Object literal(String word, Object value) {
+        if (!text.startsWith(word, current)) throw error("Unexpected character '" + text.charAt(current) + "'.");
+        current += word.length();
+        return value;
+    }
+
+    private void skipWhitespace() {
+        while (current < text.length() && Character.isWhitespace(text.charAt(current))) current++;
+    }
+
+    private boolean check(char expected) {
+        return current < text.length() && text.charAt(current) == expected;
+    }
+
+    private boolean match(char expected) {
+        if (!check(expected)) return false;
+        current++;
+        return true;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " At character " + current + ".");
+    }
+
+    private static void write(Object value, StringBuilder out) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String string) {
+            writeString(string, out);
+        } else if (value instanceof Map<?, ?> map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (!first) out.append(',');
+                first = false;
+                writeString(entry.getKey().toString(), out);
+                out.append(':');
+                write(entry.getValue(), out);
+            }
+            out.append('}');
+        } else if (value instanceof List<?> list) {
+            out.append('[');
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) out.append(',');
+                write(list.get(i), out);
+            }
+            out.append(']');
+        } else if (value instanceof Double number && number == Math.rint(number) && !Double.isInfinite(number)) {
+            out.append(number.longValue());
+        } else {
+            // Booleans, and integral numbers print as JSON already.
+            out.append(value);
+        }
+    }
+
+    private static void writeString(String string, StringBuilder out) {
+        out.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                    else out.append(c);
+                }
+            }
+        }
+        out.append('"');
+    }
+}
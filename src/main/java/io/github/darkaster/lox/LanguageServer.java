@@ -0,0 +1,307 @@
+package io.github.darkaster.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A Language Server Protocol server over stdin and stdout, for editors.
+ * Each open document is a ProgramModel with its own Interpreter, used only to resolve, so an edit re-analyses
+ * just the declarations it touched. Offers diagnostics, go to definition, find references and hover.
+ * */
+public class LanguageServer {
+    private final InputStream in;
+    private final OutputStream out;
+    private final Map<String, Document> documents = new HashMap<>();
+    private boolean shutdown = false;
+
+    LanguageServer(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    static int main() throws IOException {
+        return new LanguageServer(System.in, System.out).serve();
+    }
+
+    // Handles messages until the client exits, returning the exit code the protocol asks for.
+    int serve() throws IOException {
+        while (true) {
+            String body = read();
+            if (body == null) return shutdown ? 0 : 1;
+            Map<?, ?> message;
+            try {
+                message = (Map<?, ?>) Json.parse(body);
+            } catch (IllegalArgumentException | ClassCastException e) {
+                send(error(null, -32700, "Parse error: " + e.getMessage()));
+                continue;
+            }
+            Object id = message.get("id");
+            Object method = message.get("method");
+            // Responses to requests we never make.
+            if (!(method instanceof String)) continue;
+            if (method.equals("exit")) return shutdown ? 0 : 1;
+
+            Map<?, ?> params = message.get("params") instanceof Map<?, ?> map ? map : Map.of();
+            try {
+                Object result = handle((String) method, params, id != null);
+                if (id != null) send(response(id, result));
+            } catch (UnsupportedOperationException e) {
+                if (id != null) send(error(id, -32601, "Unknown method " + method + "."));
+            } catch (RuntimeException e) {
+                if (id != null) send(error(id, -32603, String.valueOf(e.getMessage())));
+            }
+        }
+    }
+
+    private Object handle(String method, Map<?, ?> params, boolean request) throws IOException {
+        switch (method) {
+            case "initialize":
+                return Map.of(
+                        "capabilities", Map.of(
+                                // 2 is incremental sync: changes come as edited ranges.
+                                "textDocumentSync", Map.of("openClose", true, "change", 2),
+                                "definitionProvider", true,
+                                "referencesProvider", true,
+                                "hoverProvider", true),
+                        "serverInfo", Map.of("name", "jlox"));
+            case "shutdown":
+                shutdown = true;
+                return null;
+            case "textDocument/didOpen": {
+                Map<?, ?> item = (Map<?, ?>) params.get("textDocument");
+                Document document = new Document((String) item.get("uri"));
+                documents.put(document.uri, document);
+                document.update((String) item.get("text"));
+                publishDiagnostics(document);
+                return null;
+            }
+            case "textDocument/didChange": {
+                Document document = document(params);
+                String text = document.text;
+                for (Object change : (List<?>) params.get("contentChanges")) {
+                    text = document.apply(text, (Map<?, ?>) change);
+                }
+                document.update(text);
+                publishDiagnostics(document);
+                return null;
+            }
+            case "textDocument/didClose": {
+                Document document = documents.remove(uri(params));
+                if (document != null) {
+                    send(notification("textDocument/publishDiagnostics",
+                            Map.of("uri", document.uri, "diagnostics", List.of())));
+                }
+                return null;
+            }
+            case "textDocument/definition": {
+                Document document = document(params);
+                SymbolIndex.Symbol symbol = document.symbolAt(params);
+                return symbol == null ? null : document.location(symbol.name());
+            }
+            case "textDocument/references": {
+                Document document = document(params);
+                SymbolIndex.Symbol symbol = document.symbolAt(params);
+                if (symbol == null) return List.of();
+                Map<?, ?> context = (Map<?, ?>) params.get("context");
+                boolean includeDeclaration = context != null && Boolean.TRUE.equals(context.get("includeDeclaration"));
+                List<Object> locations = new ArrayList<>();
+                for (Token token : document.model.references(symbol, includeDeclaration)) {
+                    locations.add(document.location(token));
+                }
+                return locations;
+            }
+            case "textDocument/hover": {
+                Document document = document(params);
+                Token token = document.tokenAt(params);
+                SymbolIndex.Symbol symbol = token == null ? null : document.model.definition(token);
+                if (symbol == null) return null;
+                String scope = symbol.global() ? "global" : symbol.kind() == SymbolIndex.Kind.METHOD ? "method" : "local";
+                String value = "```lox\n" + symbol.detail() + "\n```\n" + scope + ", declared on line " + symbol.name().line;
+                return Map.of("contents", Map.of("kind", "markdown", "value", value), "range", document.range(token));
+            }
+            default:
+                // Notifications we don't handle, like initialized or $/cancelRequest, are ignored.
+                if (request) throw new UnsupportedOperationException(method);
+                return null;
+        }
+    }
+
+    private static String uri(Map<?, ?> params) {
+        return (String) ((Map<?, ?>) params.get("textDocument")).get("uri");
+    }
+
+    private Document document(Map<?, ?> params) {
+        Document document = documents.get(uri(params));
+        if (document == null) throw new IllegalStateException("Document " + uri(params) + " is not open.");
+        return document;
+    }
+
+    private void publishDiagnostics(Document document) throws IOException {
+        List<Object> diagnostics = new ArrayList<>();
+        for (Diagnostic diagnostic : document.model.diagnostics()) {
+            Map<String, Object> range;
+            if (diagnostic.offset() < 0) {
+                int line = Math.min(diagnostic.line() - 1, document.lineStarts.length - 1);
+                range = document.range(document.lineStarts[line], document.lineEnd(line));
+            } else {
+                range = document.range(diagnostic.offset(), diagnostic.offset() + diagnostic.length());
+            }
+            diagnostics.add(Map.of("range", range, "severity", 1, "source", "lox", "message", diagnostic.message()));
+        }
+        send(notification("textDocument/publishDiagnostics", Map.of("uri", document.uri, "diagnostics", diagnostics)));
+    }
+
+    private static Map<String, Object> response(Object id, Object result) {
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("jsonrpc", "2.0");
+        message.put("id", id);
+        message.put("result", result);
+        return message;
+    }
+
+    private static Map<String, Object> error(Object id, int code, String text) {
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("jsonrpc", "2.0");
+        message.put("id", id);
+        message.put("error", Map.of("code", code, "message", text));
+        return message;
+    }
+
+    private static Map<String, Object> notification(String method, Object params) {
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("jsonrpc", "2.0");
+        message.put("method", method);
+        message.put("params", params);
+        return message;
+    }
+
+    // One message body, or null at the end of input. Messages are framed by a Content-Length header.
+    private String read() throws IOException {
+        int length = -1;
+        while (true) {
+            String header = readLine();
+            if (header == null) return null;
+            if (header.isEmpty()) break;
+            int colon = header.indexOf(':');
+            if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                length = Integer.parseInt(header.substring(colon + 1).trim());
+            }
+        }
+        if (length < 0) throw new IOException("Message without a Content-Length header.");
+        byte[] body = in.readNBytes(length);
+        if (body.length < length) return null;
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            int c = in.read();
+            if (c == -1) return null;
+            if (c == '\n') break;
+            if (c != '\r') line.write(c);
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+
+    private void send(Object message) throws IOException {
+        byte[] body = Json.write(message).getBytes(StandardCharsets.UTF_8);
+        out.write(("Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    /*
+     * An open document. Protocol positions are zero-based lines and UTF-16 columns, which are Java string
+     * indices, so converting them to and from offsets only needs where each line starts.
+     * */
+    private static final class Document {
+        final String uri;
+        String text = "";
+        int[] lineStarts = {0};
+        final ProgramModel model = new ProgramModel(new Interpreter());
+
+        Document(String uri) {
+            this.uri = uri;
+        }
+
+        void update(String text) {
+            this.text = text;
+            lineStarts = lineStarts(text);
+            model.update(text);
+        }
+
+        String apply(String text, Map<?, ?> change) {
+            String replacement = (String) change.get("text");
+            Map<?, ?> range = (Map<?, ?>) change.get("range");
+            if (range == null) return replacement;
+            // Later changes in the same notification are relative to the text after earlier ones.
+            int[] starts = lineStarts(text);
+            int start = offset(text, starts, (Map<?, ?>) range.get("start"));
+            int end = offset(text, starts, (Map<?, ?>) range.get("end"));
+            return text.substring(0, start) + replacement + text.substring(end);
+        }
+
+        Token tokenAt(Map<?, ?> params) {
+            return model.tokenAt(offset(text, lineStarts, (Map<?, ?>) params.get("position")));
+        }
+
+        SymbolIndex.Symbol symbolAt(Map<?, ?> params) {
+            Token token = tokenAt(params);
+            return token == null ? null : model.definition(token);
+        }
+
+        Map<String, Object> location(Token token) {
+            return Map.of("uri", uri, "range", range(token));
+        }
+
+        Map<String, Object> range(Token token) {
+            return range(token.offset, token.offset + token.lexeme.length());
+        }
+
+        Map<String, Object> range(int start, int end) {
+            return Map.of("start", position(start), "end", position(end));
+        }
+
+        private Map<String, Object> position(int offset) {
+            int line = Arrays.binarySearch(lineStarts, offset);
+            if (line < 0) line = -line - 2;
+            return Map.of("line", line, "character", offset - lineStarts[line]);
+        }
+
+        int lineEnd(int line) {
+            int end = line + 1 < lineStarts.length ? lineStarts[line + 1] - 1 : text.length();
+            return Math.max(end, lineStarts[line]);
+        }
+
+        private static int offset(String text, int[] starts, Map<?, ?> position) {
+            int line = ((Number) position.get("line")).intValue();
+            if (line >= starts.length) return text.length();
+            int character = ((Number) position.get("character")).intValue();
+            int end = line + 1 < starts.length ? starts[line + 1] : text.length();
+            return Math.min(starts[line] + character, end);
+        }
+
+        private static int[] lineStarts(String text) {
+            int lines = 1;
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '\n') lines++;
+            }
+            int[] starts = new int[lines];
+            int line = 1;
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '\n') starts[line++] = i + 1;
+            }
+            return starts;
+        }
+    }
+}
@@ -3,19 +3,48 @@ package io.github.darkaster.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 
 public class Lox {
+    // Stack size of the thread running scripts; bounds how deep non-tail recursion can go.
+    static final long STACK_SIZE = Long.getLong("lox.stackSize", 512L * 1024 * 1024);
+    // Set from the lox.backend property by main.
+    private static Backend backend = Backend.BYTECODE;
+    // Lazy mode: top-level function bodies are parsed and resolved on first call rather than at startup.
+    private static final boolean LAZY_FUNCTIONS = Boolean.getBoolean("lox.lazyFunctions");
     private static final Interpreter interpreter = new Interpreter();
-    private static boolean hadError = false;
-    private static boolean hadRuntimeError = false;
+    // Error flags are kept per thread so that batch runs can report every script on its own.
+    private static final ThreadLocal<Status> status = ThreadLocal.withInitial(() -> new Status(System.err));
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+        String backendName = System.getProperty("lox.backend", "bytecode");
+        try {
+            backend = Backend.valueOf(backendName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            String valid = Arrays.stream(Backend.values()).map(value -> value.name().toLowerCase()).collect(Collectors.joining(", "));
+            System.err.println("Unknown backend '" + backendName + "'; expected one of: " + valid + ".");
+            System.exit(64);
+        }
+
+        if (args.length >= 2 && args[0].equals("--batch")) {
+            System.exit(BatchRunner.main(args));
+        } else if (args.length == 1 && args[0].equals("--lsp")) {
+            System.exit(LanguageServer.main());
+        } else if ((args.length == 2 || args.length == 3) && args[0].equals("--compile")) {
+            compileFile(args[1], args.length == 3 ? args[2] : null);
+        } else if (args.length == 3 && args[0].equals("--snapshot")) {
+            snapshotFile(args[1], args[2]);
+        } else if (args.length == 3 && args[0].equals("--restore")) {
+            restoreFile(args[1], args[2]);
+        } else if (args.length > 1) {
+            System.out.println("Usage: jlox [script] | jlox --compile <script> [jar] | jlox --batch <dir> [threads] | jlox --lsp"
+                    + " | jlox --snapshot <prelude> <snapshot> | jlox --restore <snapshot> <script>");
             System.exit(64);
         } else if (args.length == 1) {
             runFile(args[0]);
@@ -26,69 +55,272 @@ public class Lox {
 
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
+        interpreter.setDirectory(Paths.get(path).toAbsolutePath().getParent());
+        runScript(() -> run(new String(bytes, Charset.defaultCharset())));
+    }
+
+    /*
+     * Runs a prelude and saves the globals it leaves behind, for --restore to start jobs from.
+     * */
+    private static void snapshotFile(String path, String snapshot) throws IOException {
+        String source = new String(Files.readAllBytes(Paths.get(path)), Charset.defaultCharset());
+        interpreter.setDirectory(Paths.get(path).toAbsolutePath().getParent());
+        runScript(() -> {
+            run(source);
+            if (exitCode() != 0) return;
+            try {
+                Snapshot.save(interpreter, source, Paths.get(snapshot));
+            } catch (IOException | IllegalStateException e) {
+                System.err.println("Could not write " + snapshot + ": " + e.getMessage());
+                status.get().hadError = true;
+            }
+        });
+    }
+
+    // Runs a script in the state saved by --snapshot, without running the prelude again.
+    private static void restoreFile(String snapshot, String path) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(path));
+        interpreter.setDirectory(Paths.get(path).toAbsolutePath().getParent());
+        runScript(() -> {
+            try {
+                Snapshot.restore(interpreter, Paths.get(snapshot));
+            } catch (IOException e) {
+                System.err.println("Could not read " + snapshot + ": " + e.getMessage());
+                status.get().hadError = true;
+                return;
+            }
+            run(new String(bytes, Charset.defaultCharset()));
+        });
+    }
+
+    /*
+     * Compiles a script with the selected backend and runs it, or with a jar path, writes its bytecode there instead.
+     * */
+    private static void compileFile(String path, String jar) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(path));
+        interpreter.setDirectory(Paths.get(path).toAbsolutePath().getParent());
+        runScript(() -> {
+            List<Stmt> statements = parse(new String(bytes, Charset.defaultCharset()));
+            if (statements == null || !prepare(interpreter, statements)) return;
+
+            if (jar == null) {
+                interpreter.interpret(interpreter.backend().load(interpreter, statements));
+                return;
+            }
+            if (backend != Backend.BYTECODE) {
+                System.err.println("Only the bytecode backend can write a jar.");
+                status.get().hadError = true;
+                return;
+            }
+            try {
+                BytecodeCompiler.writeJar(interpreter, statements, bytes, Paths.get(jar));
+            } catch (IOException e) {
+                System.err.println("Could not write " + jar + ": " + e.getMessage());
+                status.get().hadError = true;
+            }
+        });
+    }
+
+    /*
+     * Entry point of a jar written by --compile: links the compiled class to a fresh interpreter and runs it.
+     * */
+    static void runCompiled(Class<?> program) throws IOException {
+        byte[] bytes;
+        try (var source = program.getResourceAsStream(BytecodeCompiler.SOURCE_RESOURCE)) {
+            if (source == null) throw new IOException("Missing " + BytecodeCompiler.SOURCE_RESOURCE);
+            bytes = source.readAllBytes();
+        }
+        runScript(() -> {
+            List<Stmt> statements = parse(new String(bytes, Charset.defaultCharset()));
+            if (statements == null || !prepare(interpreter, statements)) return;
+            // A memory limit needs code whose frames it can measure; see Interpreter.backend().
+            interpreter.interpret(interpreter.backend() == Backend.BYTECODE
+                    ? BytecodeCompiler.link(interpreter, statements, program)
+                    : interpreter.backend().load(interpreter, statements));
+        });
+    }
+
+    private static void runScript(Runnable script) {
         // change the repl mode
         interpreter.setReplMode(false);
-        run(new String(bytes, Charset.defaultCharset()));
+        interpreter.setOutput(BufferedSink.stdout(false));
+        interpreter.setMaxCallDepth(Integer.getInteger("lox.maxCallDepth", Interpreter.DEFAULT_MAX_CALL_DEPTH));
+        interpreter.setCompileThresholds(Integer.getInteger("lox.compileThreshold", Interpreter.DEFAULT_INVOCATION_THRESHOLD),
+                Integer.getInteger("lox.backEdgeThreshold", Interpreter.DEFAULT_BACK_EDGE_THRESHOLD));
+        interpreter.setBudget(ExecutionBudget.fromProperties());
+        interpreter.setMemoryAccount(MemoryAccount.fromProperties());
+        interpreter.setBackend(backend);
+
+        // Run on a thread with a known stack size so the depth limit, not -Xss, decides when recursion fails.
+        int[] exitCode = new int[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                script.run();
+                exitCode[0] = exitCode();
+            } catch (RuntimeException | Error e) {
+                // Still fail the process; the thread's uncaught exception handler prints the trace.
+                exitCode[0] = 70;
+                throw e;
+            }
+        }, "lox-main", STACK_SIZE);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         // Indicate an error in the exit code.
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+        System.exit(exitCode[0]);
     }
 
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
         interpreter.setReplMode(true);
+        interpreter.setOutput(BufferedSink.stdout(true));
+        // Parses and resolves each line, and keeps the session's definitions.
+        ProgramModel program = new ProgramModel(interpreter);
 
         while (true) {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
-            hadError = false;
+            List<Stmt> statements = program.append(line);
+            if (statements != null) {
+                interpreter.interpret(statements);
+                // The line won't run again; only closures it created may still need their bodies resolved.
+                interpreter.forget(statements, true);
+            }
+            clearError();
         }
     }
 
     private static void run(String source) {
+        List<Stmt> statements = parse(source, LAZY_FUNCTIONS);
+
+        // Stop if there was a syntax error.
+        if (statements == null) return;
+
+        execute(interpreter, statements);
+    }
+
+    static List<Stmt> parse(String source) {
+        return parse(source, false);
+    }
+
+    // Scripts and modules that only run in the interpreter can defer function bodies; compiled ones can't.
+    static List<Stmt> parse(String source, boolean deferBodies) {
         Scanner scanner = new Scanner(source);
         List<Token> tokens = scanner.scanTokens();
 
-        Parser parser = new Parser(tokens);
+        Parser parser = new Parser(tokens, deferBodies);
         List<Stmt> statements = parser.parse();
 
-        // Stop if there was a syntax error.
-        if (hadError) return;
+        if (status.get().hadError) return null;
+        return statements;
+    }
+
+    static void execute(Interpreter interpreter, List<Stmt> statements) {
+        if (prepare(interpreter, statements)) interpreter.interpret(statements);
+    }
 
-        Resolver resolver = new Resolver(interpreter);
+    // Resolves and type-annotates the statements; false if there was a resolution error.
+    static boolean prepare(Interpreter interpreter, List<Stmt> statements) {
+        return prepare(interpreter, statements, interpreter.globals);
+    }
+
+    // The same for a module, whose top-level names live in globals of its own.
+    static boolean prepare(Interpreter interpreter, List<Stmt> statements, Globals globals) {
+        Resolver resolver = new Resolver(interpreter, globals);
         resolver.resolve(statements);
 
 //        System.out.println(new AstPrinter().print(statements));
         // Stop if there was a resolution error.
-        if (hadError) return;
+        if (status.get().hadError) return false;
+
+        new TypeInference(resolver.declarations()).infer(statements);
+        return true;
+    }
 
-        interpreter.interpret(statements);
+    /*
+     * Starts a fresh error state for the current thread, with diagnostics going to the given stream.
+     * */
+    static void resetStatus(PrintStream err) {
+        status.set(new Status(err));
+    }
+
+    static boolean lazyFunctions() {
+        return LAZY_FUNCTIONS;
+    }
+
+    static int exitCode() {
+        if (status.get().hadError) return 65;
+        if (status.get().hadRuntimeError) return 70;
+        return 0;
+    }
+
+    static boolean hadError() {
+        return status.get().hadError;
+    }
 
-//        System.out.println(new AstPrinter().print(expression));
+    static void clearError() {
+        status.get().hadError = false;
+    }
+
+    // While a list is given, errors go there instead of being printed. Null prints them again.
+    static void collectErrors(List<Diagnostic> diagnostics) {
+        status.get().diagnostics = diagnostics;
     }
 
     static void error(int line, String message) {
-        report(line, "", message);
+        report(line, -1, 0, "", message);
+    }
+
+    // An error about source text that is not a token, such as an unterminated string.
+    static void error(int line, int offset, int length, String message) {
+        report(line, offset, length, "", message);
     }
 
     static void error(Token token, String message) {
         if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
+            report(token.line, token.offset, 0, " at end", message);
         } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            report(token.line, token.offset, token.lexeme.length(), " at '" + token.lexeme + "'", message);
         }
     }
 
-    private static void report(int line, String where, String message) {
-        System.err.printf("[line %d] Error%s: %s%n", line, where, message);
-        hadError = true;
+    private static void report(int line, int offset, int length, String where, String message) {
+        Status current = status.get();
+        if (current.diagnostics != null) {
+            current.diagnostics.add(new Diagnostic(line, offset, length, where, message));
+        } else {
+            current.err.printf("[line %d] Error%s: %s%n", line, where, message);
+        }
+        current.hadError = true;
+    }
+
+    // Prints an error that was collected instead.
+    static void report(Diagnostic diagnostic) {
+        report(diagnostic.line(), diagnostic.offset(), diagnostic.length(), diagnostic.where(), diagnostic.message());
     }
 
     public static void runtimeError(RuntimeError error) {
-        System.err.printf("%s\n[line %d]%n", error.getMessage(), error.token.line);
-        hadRuntimeError = true;
+        Status current = status.get();
+        current.err.printf("%s\n[line %d]%n", error.getMessage(), error.token.line);
+        for (String frame : error.trace()) {
+            current.err.println("    " + frame);
+        }
+        current.hadRuntimeError = true;
+    }
+
+    private static class Status {
+        final PrintStream err;
+        boolean hadError = false;
+        boolean hadRuntimeError = false;
+        List<Diagnostic> diagnostics = null;
+
+        Status(PrintStream err) {
+            this.err = err;
+        }
     }
-}
\ No newline at end of file
+}
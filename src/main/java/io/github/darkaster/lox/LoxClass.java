@@ -1,18 +1,28 @@
 package io.github.darkaster.lox;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class LoxClass extends LoxInstance implements LoxCallable {
     private final Token name;
+    // Own methods plus every inherited one not overridden, flattened when the class is defined.
+    // Lox classes can't be changed afterwards, so the table never needs invalidating.
     private final Map<String, LoxFunction> methods;
-    private final LoxClass superclass;
+    private final LoxFunction initializer;
+    // Shared by all instances of this class.
+    final FieldLayout layout = new FieldLayout();
 
     public LoxClass(Token name, Map<String, LoxFunction> methods, LoxClass superclass) {
         super(null);
         this.name = name;
-        this.methods = methods;
-        this.superclass = superclass;
+
+        Map<String, LoxFunction> table = new HashMap<>();
+        if (superclass != null) table.putAll(superclass.methods);
+        table.putAll(methods);
+        this.methods = table;
+        this.initializer = table.get("init");
     }
 
     public String toString() {
@@ -21,30 +31,32 @@ public class LoxClass extends LoxInstance implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        interpreter.allocate(name, MemoryAccount.instanceBytes(layout.size()));
         LoxInstance instance = new LoxInstance(this);
 
-        LoxFunction initializer = findMethod("init");
-        if (initializer != null) {
-            LoxFunction binded = initializer.bind(instance);
-            binded.call(interpreter, arguments);
-        }
+        // Run init directly on the new instance instead of binding a copy of it first.
+        if (initializer != null) initializer.invoke(interpreter, instance, arguments);
 
         return instance;
     }
 
+    Token name() {
+        return name;
+    }
+
+    Collection<LoxFunction> methods() {
+        return methods.values();
+    }
+
     @Override
     public LoxFunction findMethod(String name) {
-        LoxFunction method = methods.get(name);
-        if (method != null) return method;
-
-        return superclass.findMethod(name);
+        return methods.get(name);
     }
 
 }
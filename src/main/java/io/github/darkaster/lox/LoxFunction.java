@@ -4,13 +4,24 @@ import java.util.List;
 
 public class LoxFunction implements LoxCallable {
     protected final Stmt.Function declaration;
+    // Null until the first call of a function whose body was deferred.
+    protected FunctionLayout layout;
     protected final Environment closure;
     protected final boolean isInitializer;
+    // The instance a method is bound to, or null.
+    protected final LoxInstance receiver;
 
-    public LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    public LoxFunction(Stmt.Function declaration, FunctionLayout layout, Environment closure, boolean isInitializer) {
+        this(declaration, layout, closure, isInitializer, null);
+    }
+
+    protected LoxFunction(Stmt.Function declaration, FunctionLayout layout, Environment closure,
+                          boolean isInitializer, LoxInstance receiver) {
         this.declaration = declaration;
+        this.layout = layout;
         this.closure = closure;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
     @Override
@@ -20,19 +31,64 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment env = new Environment(closure);
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    /*
+     * Runs the body with the given receiver in "this", without creating a bound copy first.
+     * LoxClass uses this to run initializers on freshly constructed instances.
+     * A TailCall returned by the body (interpreted or compiled) is run by the same loop, reusing the frame array
+     * (uncaptured locals are always written before they are read, so stale slots are harmless).
+     * */
+    Object invoke(Interpreter interpreter, LoxInstance self, List<Object> arguments) {
+        LoxFunction function = this;
+        Object[] frame = null;
 
-        for (int i = 0; i < arity(); i++) {
-            env.define(declaration.param.get(i), arguments.get(i));
+        while (true) {
+            interpreter.step(function.declaration.name);
+            FunctionLayout layout = function.layout;
+            if (layout == null) layout = function.layout = interpreter.materialize(function.declaration);
+            if (layout.code == null) interpreter.countInvocation(function);
+            if (layout.code != null) {
+                Object value = layout.code.invoke(layout.codeId, interpreter, function.closure, self, arguments);
+                if (!(value instanceof TailCall tail)) return value;
+                function = tail.function();
+                self = function.receiver;
+                arguments = tail.arguments();
+                continue;
+            }
+            // Only functions with captured locals need an Environment of their own.
+            Environment env = layout.hasEnvironment ? interpreter.newEnvironment(function.closure) : function.closure;
+            if (frame == null || frame.length < layout.frameSize) frame = new Object[layout.frameSize];
+
+            if (layout.receiver != null) place(layout.receiver, self, env, frame);
+            for (int i = 0; i < layout.params.length; i++) {
+                place(layout.params[i], arguments.get(i), env, frame);
+            }
+
+            try {
+                interpreter.executeBody(function, env, frame);
+            } catch (Return returnValue) {
+                if (function.isInitializer) return self;
+                if (returnValue.value instanceof TailCall tail) {
+                    function = tail.function();
+                    self = function.receiver;
+                    arguments = tail.arguments();
+                    continue;
+                }
+                return returnValue.value;
+            }
+            if (function.isInitializer) return self;
+            return null;
         }
+    }
 
-        try {
-            interpreter.executeBlock(declaration.body, env);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.value;
+    static void place(Binding binding, Object value, Environment env, Object[] frame) {
+        if (binding.inFrame()) {
+            frame[binding.slot] = value;
+        } else {
+            env.define(binding.name, value);
         }
-        return null;
     }
 
     @Override
@@ -41,9 +97,7 @@ public class LoxFunction implements LoxCallable {
     }
 
     public LoxFunction bind(LoxInstance loxInstance) {
-        Environment env = new Environment(closure);
-        env.define("this", loxInstance);
-        return new LoxFunction(declaration, env, isInitializer);
+        return new LoxFunction(declaration, layout, closure, isInitializer, loxInstance);
     }
 
 }
@@ -4,8 +4,12 @@ import java.util.List;
 
 public class LoxGetter extends LoxFunction {
 
-    public LoxGetter(Stmt.Getter stmt, Environment environment) {
-        super(stmt, environment, false);
+    public LoxGetter(Stmt.Getter stmt, FunctionLayout layout, Environment environment) {
+        super(stmt, layout, environment, false);
+    }
+
+    private LoxGetter(Stmt.Getter stmt, FunctionLayout layout, Environment environment, LoxInstance receiver) {
+        super(stmt, layout, environment, false, receiver);
     }
 
     @Override
@@ -15,9 +19,7 @@ public class LoxGetter extends LoxFunction {
 
     @Override
     public LoxFunction bind(LoxInstance loxInstance) {
-        Environment env = new Environment(closure);
-        env.define("this", loxInstance);
-        return new LoxGetter((Stmt.Getter) declaration, env);
+        return new LoxGetter((Stmt.Getter) declaration, layout, closure, loxInstance);
     }
 
     public Object call(Interpreter interpreter) {
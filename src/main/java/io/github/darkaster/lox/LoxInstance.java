@@ -1,14 +1,30 @@
 package io.github.darkaster.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
 
 public class LoxInstance {
+    // Fields beyond the inline ones go to the overflow array.
+    private static final int INLINE_FIELDS = 4;
+    private static final Object[] NO_FIELDS = new Object[0];
+
     private final LoxClass clazz;
-    private final Map<String, Object> members = new HashMap<>();
+    private final FieldLayout layout;
+    private Object field0 = ValueTable.ABSENT;
+    private Object field1 = ValueTable.ABSENT;
+    private Object field2 = ValueTable.ABSENT;
+    private Object field3 = ValueTable.ABSENT;
+    private Object[] overflow;
+    // Fields the frozen layout has no index for, or null.
+    private ValueTable extra;
+    // Reachable from an interpreter that has been forked: its forks read it, but keep what they set.
+    boolean shared = false;
 
     public LoxInstance(LoxClass clazz) {
         this.clazz = clazz;
+        // A class object keeps its own fields, laid out independently of its instances.
+        this.layout = clazz == null ? new FieldLayout() : clazz.layout;
+        this.overflow = newOverflow(layout.size() - INLINE_FIELDS);
     }
 
     @Override
@@ -16,9 +32,18 @@ public class LoxInstance {
         return "%s instance".formatted(clazz);
     }
 
-    public Object get(Token name) {
-        if (members.containsKey(name.lexeme)) {
-            return members.get(name.lexeme);
+    public Object get(Token name, Interpreter context) {
+        if (shared) {
+            Object member = context.overridden(this, name.lexeme);
+            if (member != ValueTable.ABSENT) return member;
+        }
+        int index = layout.indexOf(name.lexeme);
+        if (index >= 0) {
+            Object member = load(index);
+            if (member != ValueTable.ABSENT) return member;
+        } else if (extra != null) {
+            Object member = extra.get(name.lexeme);
+            if (member != ValueTable.ABSENT) return member;
         }
 
         LoxFunction method = findMethod(name.lexeme);
@@ -31,7 +56,79 @@ public class LoxInstance {
         return clazz.findMethod(name);
     }
 
-    public void set(Token name, Object value) {
-        members.put(name.lexeme, value);
+    public void set(Token name, Object value, Interpreter context) {
+        if (shared) {
+            context.override(this, name.lexeme, value);
+            return;
+        }
+        set(name.lexeme, value);
+    }
+
+    void set(String name, Object value) {
+        int index = layout.indexOf(name);
+        if (index < 0) {
+            if (layout.frozen) {
+                if (extra == null) extra = new ValueTable();
+                extra.put(name, value);
+                return;
+            }
+            index = layout.add(name);
+        }
+        store(index, value);
+    }
+
+    LoxClass klass() {
+        return clazz;
+    }
+
+    int fieldCount() {
+        return layout.size() + (extra == null ? 0 : extra.size());
+    }
+
+    void fields(BiConsumer<String, Object> action) {
+        for (int i = 0; i < layout.size(); i++) {
+            Object value = load(i);
+            if (value != ValueTable.ABSENT) action.accept(layout.name(i), value);
+        }
+        if (extra != null) extra.forEach(action);
+    }
+
+    private Object load(int index) {
+        return switch (index) {
+            case 0 -> field0;
+            case 1 -> field1;
+            case 2 -> field2;
+            case 3 -> field3;
+            default -> {
+                int slot = index - INLINE_FIELDS;
+                yield slot < overflow.length ? overflow[slot] : ValueTable.ABSENT;
+            }
+        };
+    }
+
+    private void store(int index, Object value) {
+        switch (index) {
+            case 0 -> field0 = value;
+            case 1 -> field1 = value;
+            case 2 -> field2 = value;
+            case 3 -> field3 = value;
+            default -> {
+                int slot = index - INLINE_FIELDS;
+                if (slot >= overflow.length) {
+                    // The layout grew after this instance was created.
+                    int length = overflow.length;
+                    overflow = Arrays.copyOf(overflow, Math.max(layout.size() - INLINE_FIELDS, slot + 1));
+                    Arrays.fill(overflow, length, overflow.length, ValueTable.ABSENT);
+                }
+                overflow[slot] = value;
+            }
+        }
+    }
+
+    private static Object[] newOverflow(int length) {
+        if (length <= 0) return NO_FIELDS;
+        Object[] fields = new Object[length];
+        Arrays.fill(fields, ValueTable.ABSENT);
+        return fields;
     }
 }
@@ -0,0 +1,42 @@
+package io.github.darkaster.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The namespace an import binds: the top-level declarations of a module, read live from the module's own globals.
+ * Other globals it uses, natives included, are not exported.
+ * */
+final class LoxModule {
+    private final String name;
+    private final Map<String, GlobalCell> exports = new HashMap<>();
+    // All of the module's globals, exported or not, for memory accounting.
+    final Globals globals;
+
+    LoxModule(String name, Globals globals, List<Stmt> statements) {
+        this.name = name;
+        this.globals = globals;
+        for (Stmt statement : statements) {
+            Token declared = null;
+            if (statement instanceof Stmt.Var var) declared = var.name;
+            else if (statement instanceof Stmt.Function function) declared = function.name;
+            else if (statement instanceof Stmt.Class klass) declared = klass.name;
+            else if (statement instanceof Stmt.Import module) declared = module.name;
+            if (declared != null) exports.put(declared.lexeme, globals.cell(declared.lexeme));
+        }
+    }
+
+    Object get(Token name, Interpreter context) {
+        GlobalCell cell = exports.get(name.lexeme);
+        if (cell == null) {
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme + "' in module " + this.name + ".");
+        }
+        return cell.get(name, context);
+    }
+
+    @Override
+    public String toString() {
+        return "<module " + name + ">";
+    }
+}
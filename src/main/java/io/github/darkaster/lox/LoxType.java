@@ -0,0 +1,15 @@
+package io.github.darkaster.lox;
+
+/*
+ * Static type of an expression as proven by TypeInference.
+ * BOTTOM means "no value seen yet" and only exists while the inference iterates.
+ * */
+enum LoxType {
+    BOTTOM, NUMBER, STRING, BOOLEAN, NIL, UNKNOWN;
+
+    LoxType join(LoxType other) {
+        if (this == BOTTOM) return other;
+        if (other == BOTTOM || other == this) return this;
+        return UNKNOWN;
+    }
+}
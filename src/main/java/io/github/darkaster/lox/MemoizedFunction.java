@@ -0,0 +1,88 @@
+package io.github.darkaster.lox;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Wraps a callable in a bounded LRU cache keyed by argument tuples, as returned by memoize(fn).
+ * Only calls whose arguments are all numbers, strings, booleans or nil are cached; anything
+ * else (instances, functions) has identity semantics and is passed straight through.
+ * */
+class MemoizedFunction implements LoxCallable {
+    static final int DEFAULT_CAPACITY = 10_000;
+
+    private final LoxCallable function;
+    private final int capacity;
+    private final Map<List<Object>, Object> cache;
+    private long hits = 0;
+    private long misses = 0;
+
+    MemoizedFunction(LoxCallable function, int capacity) {
+        this.function = function;
+        this.capacity = capacity;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    public int arity() {
+        return function.arity();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        if (!cacheable(arguments)) return function.call(interpreter, arguments);
+
+        // Forks of an interpreter share its memoized functions, so the cache is locked; the call itself isn't.
+        synchronized (cache) {
+            // get() can't tell a cached nil from a miss.
+            if (cache.containsKey(arguments)) {
+                hits++;
+                return cache.get(arguments);
+            }
+            misses++;
+        }
+
+        Object result = function.call(interpreter, arguments);
+        synchronized (cache) {
+            cache.put(new ArrayList<>(arguments), result);
+        }
+        return result;
+    }
+
+    LoxCallable function() {
+        return function;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    String stats() {
+        // Counted under the cache's lock, so read under it too for a consistent set.
+        synchronized (cache) {
+            return "hits: %d, misses: %d, size: %d".formatted(hits, misses, cache.size());
+        }
+    }
+
+    private static boolean cacheable(List<Object> arguments) {
+        for (Object argument : arguments) {
+            if (argument != null && !(argument instanceof Double)
+                    && !(argument instanceof String) && !(argument instanceof Boolean)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "<memoized " + function + ">";
+    }
+}
@@ -0,0 +1,163 @@
+package io.github.darkaster.lox;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/*
+ * Approximate heap usage of one interpreter: instances, classes, closures, environments and strings.
+ * Allocations are charged an estimated size as they happen. Garbage can't be told apart from live data that way,
+ * so once the charges since the last measurement would take usage past the limit, the Lox values reachable from
+ * the interpreter are walked and sized, and only a live size over the limit fails the script with a RuntimeError.
+ * Between measurements usage may run over the limit by about a sixteenth of it.
+ * Sizes are estimates for a 64-bit JVM with compressed pointers. The locals of callers waiting on a call are counted,
+ * but not intermediate values of the expressions they are in the middle of.
+ * current() and peak() may be read from any thread; charging is done by the thread running the script.
+ * */
+public final class MemoryAccount {
+    static final long FUNCTION_BYTES = 32;
+    static final long CLASS_BYTES = 128;
+    static final long ENVIRONMENT_BYTES = 128;
+    private static final long INSTANCE_BYTES = 48;
+    private static final long STRING_BYTES = 40;
+    private static final long BOXED_BYTES = 16;
+    private static final long REFERENCE_BYTES = 4;
+    // Without a limit, how much is charged before the first measurement.
+    private static final long MIN_INTERVAL = 1 << 20;
+
+    private final long limit;
+    private volatile long live = 0;
+    private volatile long peak = 0;
+    // Charged since the last measurement.
+    private long pending = 0;
+    private long interval;
+
+    // Zero means no limit: usage is still measured, for current() and peak().
+    public MemoryAccount(long limit) {
+        this.limit = limit;
+        this.interval = limit > 0 ? limit : MIN_INTERVAL;
+    }
+
+    /*
+     * The account set by the lox.maxMemory property (bytes, zero for no limit), or null if it isn't set.
+     * */
+    static MemoryAccount fromProperties() {
+        String maxMemory = System.getProperty("lox.maxMemory");
+        return maxMemory == null ? null : new MemoryAccount(Long.parseLong(maxMemory));
+    }
+
+    public long limit() {
+        return limit;
+    }
+
+    // Live size at the last measurement plus everything charged since, garbage included.
+    public long current() {
+        return live + pending;
+    }
+
+    // Highest measured live size, or current() if that is higher.
+    public long peak() {
+        return Math.max(peak, current());
+    }
+
+    static long instanceBytes(int fields) {
+        return INSTANCE_BYTES + fields * REFERENCE_BYTES;
+    }
+
+    static long stringBytes(int length) {
+        // Compact strings: one byte per character for Latin-1 text.
+        return STRING_BYTES + length;
+    }
+
+    // Charges an allocation that is about to be made, failing at where if it doesn't fit.
+    void charge(Interpreter interpreter, Token where, long bytes) {
+        pending += bytes;
+        if (pending >= interval) measure(interpreter, where, bytes);
+    }
+
+    // Charges an allocation that can't fail on its own; the next charge() accounts for it.
+    void add(long bytes) {
+        pending += bytes;
+    }
+
+    private void measure(Interpreter interpreter, Token where, long bytes) {
+        Meter meter = new Meter();
+        interpreter.roots(meter);
+        // The allocation being charged isn't reachable yet.
+        long measured = meter.total() + bytes;
+        live = measured;
+        pending = 0;
+        if (measured > peak) peak = measured;
+        if (limit > 0 && measured > limit) {
+            throw new RuntimeError(where, "Memory limit of " + limit + " bytes exceeded (" + measured + " bytes in use).");
+        }
+        interval = limit > 0 ? Math.max(limit - measured, limit / 16) : Math.max(measured, MIN_INTERVAL);
+    }
+
+    /*
+     * Sizes the graph of Lox values reachable from the roots it is given, each object once.
+     * */
+    static final class Meter {
+        private final Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final ArrayDeque<Object> pending = new ArrayDeque<>();
+        private long total = 0;
+
+        void add(Object value) {
+            if (value == null || value instanceof Boolean) return;
+            // Boxed numbers are rarely shared, so they are counted without a lookup.
+            if (value instanceof Double) {
+                total += BOXED_BYTES;
+                return;
+            }
+            if (seen.add(value)) pending.add(value);
+        }
+
+        void add(Object[] frame) {
+            // The blocks of a call share its frame.
+            if (!seen.add(frame)) return;
+            total += BOXED_BYTES + REFERENCE_BYTES * frame.length;
+            for (Object value : frame) add(value);
+        }
+
+        void add(Globals globals) {
+            for (GlobalCell cell : globals.cells()) {
+                total += BOXED_BYTES + REFERENCE_BYTES * 2;
+                add(cell.value);
+            }
+        }
+
+        long total() {
+            while (!pending.isEmpty()) size(pending.poll());
+            return total;
+        }
+
+        private void size(Object value) {
+            if (value instanceof String string) {
+                total += stringBytes(string.length());
+            } else if (value instanceof LoxClass klass) {
+                total += CLASS_BYTES + klass.fieldCount() * REFERENCE_BYTES;
+                klass.fields((name, field) -> add(field));
+                for (LoxFunction method : klass.methods()) {
+                    total += FUNCTION_BYTES;
+                    add(method.closure);
+                }
+            } else if (value instanceof LoxInstance instance) {
+                total += instanceBytes(instance.fieldCount());
+                instance.fields((name, field) -> add(field));
+                add(instance.klass());
+            } else if (value instanceof LoxFunction function) {
+                total += FUNCTION_BYTES;
+                add(function.closure);
+                add(function.receiver);
+            } else if (value instanceof Environment environment) {
+                total += ENVIRONMENT_BYTES + environment.size() * REFERENCE_BYTES * 2;
+                environment.forEach((name, local) -> add(local));
+                add(environment.enclosing);
+            } else if (value instanceof LoxModule module) {
+                total += CLASS_BYTES;
+                add(module.globals);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.github.darkaster.lox;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Parsed modules, shared by every interpreter in the process and keyed by path and modification time,
+ * so a library imported by many scripts is scanned and parsed once. Resolution lives in each interpreter's
+ * side tables, so every interpreter still resolves a module itself, once, on its first import.
+ * */
+final class ModuleCache {
+    private static final Map<Path, CachedModule> cache = new ConcurrentHashMap<>();
+
+    private ModuleCache() {
+    }
+
+    // Null if the module has syntax errors, which have been reported.
+    static List<Stmt> parse(Path path) throws IOException {
+        FileTime modified = Files.getLastModifiedTime(path);
+        CachedModule cached = cache.get(path);
+        if (cached != null && cached.modified().equals(modified)) return cached.statements();
+
+        String source = new String(Files.readAllBytes(path), Charset.defaultCharset());
+        List<Stmt> statements = Lox.parse(source, Lox.lazyFunctions());
+        // Modules with syntax errors are not cached so that every import reports them.
+        if (statements != null) cache.put(path, new CachedModule(modified, statements));
+        return statements;
+    }
+
+    private record CachedModule(FileTime modified, List<Stmt> statements) {
+    }
+}
@@ -0,0 +1,62 @@
+package io.github.darkaster.lox;
+
+/*
+ * Formats Lox numbers the way Double.toString does, minus the trailing ".0" on integral values.
+ * Integral values below 1e7 (the range Double.toString prints without an exponent) are written
+ * straight into a char buffer as long digits. Everything else goes through Double.toString,
+ * which since JDK 19 uses the Schubfach shortest round-trip algorithm and never ends in ".0" here.
+ * */
+final class NumberFormatter {
+    // Longest plain integral: "-9999999".
+    static final int MAX_INTEGRAL_CHARS = 8;
+    private static final double PLAIN_LIMIT = 1e7;
+
+    private NumberFormatter() {
+    }
+
+    static boolean isPlainIntegral(double value) {
+        return value > -PLAIN_LIMIT && value < PLAIN_LIMIT && value == (long) value;
+    }
+
+    /*
+     * Writes a value accepted by isPlainIntegral into buffer at offset and returns the new offset.
+     * */
+    static int writeIntegral(double value, char[] buffer, int offset) {
+        long digits = (long) value;
+        if (digits == 0) {
+            // -0.0 prints as "-0", like Double.toString does.
+            if (Double.doubleToRawLongBits(value) != 0) buffer[offset++] = '-';
+            buffer[offset++] = '0';
+            return offset;
+        }
+
+        if (digits < 0) {
+            buffer[offset++] = '-';
+            digits = -digits;
+        }
+
+        int end = offset + digitCount(digits);
+        for (int i = end - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + digits % 10);
+            digits /= 10;
+        }
+        return end;
+    }
+
+    static String toString(double value) {
+        if (isPlainIntegral(value)) {
+            char[] buffer = new char[MAX_INTEGRAL_CHARS];
+            return new String(buffer, 0, writeIntegral(value, buffer, 0));
+        }
+        return Double.toString(value);
+    }
+
+    private static int digitCount(long value) {
+        int count = 1;
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,24 @@
+package io.github.darkaster.lox;
+
+/*
+ * Destination for everything the interpreter prints.
+ * Implementations may buffer; callers flush at the end of a run and before reporting errors.
+ * */
+public interface OutputSink {
+    void print(String text);
+
+    void print(char c);
+
+    default void print(double number) {
+        print(NumberFormatter.toString(number));
+    }
+
+    void println();
+
+    void flush();
+
+    default void println(String text) {
+        print(text);
+        println();
+    }
+}
@@ -20,7 +20,8 @@ import static io.github.darkaster.lox.TokenType.*;
  * printStmt      → "print" expression ";" ;
  * returnStmt     → "return" expression? ";" ;
  * block          → "{" declaration* "}" ;
- * declaration    → classDecl | funDecl | varDecl | statement ;
+ * declaration    → classDecl | funDecl | varDecl | importDecl | statement ;
+ * importDecl     → "import" STRING ";" ;
  * classDecl      → "class" IDENTIFIER ("<" IDENTIFIER )? "{" function* "}"
  * funDecl        → "fun" function;
  * function       → IDENTIFIER ("(" parameters? ")")? block ;
@@ -41,15 +42,47 @@ import static io.github.darkaster.lox.TokenType.*;
 class Parser {
     private final List<Token> tokens;
     private int current = 0;
+    // Lazy mode: bodies of top-level functions are only brace-matched, and parsed on their first call.
+    private final boolean deferBodies;
+    // Blocks being parsed; functions in them may capture locals, so their bodies are never deferred.
+    private int nesting = 0;
 
     Parser(List<Token> tokens) {
+        this(tokens, false);
+    }
+
+    Parser(List<Token> tokens, boolean deferBodies) {
         this.tokens = tokens;
+        this.deferBodies = deferBodies;
+    }
+
+    /*
+     * Parses the body of a function the parser deferred, the first time it is needed. Cached ASTs can be shared
+     * by interpreters on several threads, hence the lock. Returns null if the body has syntax errors, which are
+     * reported; like a script's, they are only checked before any other error has been.
+     * */
+    static List<Stmt> parseDeferred(Stmt.Function function) {
+        synchronized (function) {
+            if (function.deferred != null) {
+                List<Stmt> body = new Parser(function.deferred).parse();
+                if (Lox.hadError()) return null;
+                function.body = body;
+                function.deferred = null;
+            }
+            return function.body;
+        }
     }
 
     //    Given a valid sequence of tokens, produce a corresponding syntax tree.
     List<Stmt> parse() {
+        return parse(new ArrayList<>());
+    }
+
+    // Also records the index of the first token of each top-level declaration; failed ones parse to null.
+    List<Stmt> parse(List<Integer> starts) {
         List<Stmt> statements = new ArrayList<>();
         while (!isAtEnd()) {
+            starts.add(current);
             statements.add(declaration());
         }
 
@@ -61,6 +94,7 @@ class Parser {
             if (match(CLASS)) return classDeclaration();
             if (match(FUN)) return function("function");
             if (match(VAR)) return varDeclaration();
+            if (match(IMPORT)) return importDeclaration();
             return statement();
         } catch (ParseError e) {
             synchronize();
@@ -115,11 +149,37 @@ class Parser {
         consume(RIGHT_PAREN, "Expected ')' after parameters");
 
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+        if (deferBodies && nesting == 0 && kind.equals("function")) {
+            List<Token> deferred = skipBody();
+            if (deferred != null) {
+                Stmt.Function function = new Stmt.Function(name, params, List.of());
+                function.deferred = deferred;
+                return function;
+            }
+        }
         List<Stmt> body = block();
 
         return new Stmt.Function(name, params, body);
     }
 
+    // Skips to the brace closing the body and returns the tokens in between, ending with an EOF; null if unclosed.
+    private List<Token> skipBody() {
+        int depth = 1;
+        for (int i = current; i < tokens.size() - 1; i++) {
+            TokenType type = tokens.get(i).type;
+            if (type == LEFT_BRACE) {
+                depth++;
+            } else if (type == RIGHT_BRACE && --depth == 0) {
+                Token close = tokens.get(i);
+                List<Token> body = new ArrayList<>(tokens.subList(current, i));
+                body.add(new Token(EOF, "", null, close.line, close.offset));
+                current = i + 1;
+                return body;
+            }
+        }
+        return null;
+    }
+
     private Stmt varDeclaration() {
         Token name = consume(IDENTIFIER, "Expect variable name.");
         Expr initializer = null;
@@ -131,6 +191,19 @@ class Parser {
         return new Stmt.Var(name, initializer);
     }
 
+    // The module is bound to its file name without directories or the .lox extension.
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        Token path = consume(STRING, "Expect module path after 'import'.");
+        consume(SEMICOLON, "Expect ';' after module path.");
+
+        String name = (String) path.literal;
+        name = name.substring(name.lastIndexOf('/') + 1);
+        if (name.endsWith(".lox")) name = name.substring(0, name.length() - ".lox".length());
+        if (!Scanner.isIdentifier(name)) error(path, "Module file name must be a valid identifier.");
+        return new Stmt.Import(keyword, path, new Token(IDENTIFIER, name, null, path.line, path.offset));
+    }
+
     // syntax grammar
     // expression → equality ;
     private Expr expression() {
@@ -372,6 +445,7 @@ class Parser {
                 case WHILE:
                 case PRINT:
                 case RETURN:
+                case IMPORT:
                     return;
             }
 
@@ -401,6 +475,7 @@ class Parser {
     }
 
     private Stmt forStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expected '(' after 'for'");
         Stmt initializer;
         if (match(SEMICOLON)) {
@@ -433,7 +508,7 @@ class Parser {
             body = new Stmt.Block(List.of(body, new Stmt.Expression(increment)));
         }
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(keyword, condition, body);
 
         if (initializer != null) {
             body = new Stmt.Block(List.of(initializer, body));
@@ -443,12 +518,13 @@ class Parser {
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expected '(' after 'while'");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expected ')' after 'while' condition");
         Stmt stmt = statement();
 
-        return new Stmt.While(condition, stmt);
+        return new Stmt.While(keyword, condition, stmt);
     }
 
     // ifStmt → "if" "(" expression ")" statement ( "else" statement )? ;
@@ -473,8 +549,13 @@ class Parser {
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
 
-        while (!check(RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declaration());
+        nesting++;
+        try {
+            while (!check(RIGHT_BRACE) && !isAtEnd()) {
+                statements.add(declaration());
+            }
+        } finally {
+            nesting--;
         }
 
         consume(RIGHT_BRACE, "Expect '}' after block.");
@@ -0,0 +1,406 @@
+package io.github.darkaster.lox;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A source document kept between edits as a list of units, one per top-level declaration.
+ * An update re-scans, re-parses and re-resolves only the units the edit touched; units after it keep
+ * their ASTs and resolution and just have their tokens moved. The interpreter forgets whatever it
+ * recorded for replaced units, so the model is for analysis and must not hold code that has run.
+ * Top-level declarations are resolved independently of each other (they are globals), which is
+ * what makes resolving one unit at a time possible.
+ * Each unit also keeps its errors and a SymbolIndex, which move with it, for the language server.
+ *
+ * The REPL uses the model the other way round, through append(): it holds code that has run, never re-parsed,
+ * and only the session's current top-level definitions, so it doesn't grow with the number of lines entered.
+ * Such a model doesn't keep its text and can't be updated.
+ * */
+final class ProgramModel {
+    private final Interpreter interpreter;
+    private String source = "";
+    private List<Unit> units = new ArrayList<>();
+    // Units parsed by the last update, for callers that want to know how much work an edit caused.
+    private int reparsed = 0;
+    // Session offset after the last line appended, or -1 if the model isn't used by append().
+    private int appended = -1;
+
+    ProgramModel(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    /*
+     * Brings the model up to date with the new text of the document.
+     * Syntax and resolution errors are not printed but kept with the units they were found in.
+     * */
+    void update(String text) {
+        if (appended >= 0) throw new IllegalStateException("A REPL session's model can't be edited.");
+        String old = source;
+        int prefix = 0;
+        int limit = Math.min(old.length(), text.length());
+        while (prefix < limit && old.charAt(prefix) == text.charAt(prefix)) prefix++;
+        int suffix = 0;
+        while (suffix < limit - prefix
+                && old.charAt(old.length() - 1 - suffix) == text.charAt(text.length() - 1 - suffix)) {
+            suffix++;
+        }
+        int editEnd = old.length() - suffix;
+        int delta = text.length() - old.length();
+
+        // The units next to the edit are re-scanned too: typing at the end of one can extend its last token.
+        int first = 0;
+        while (first < units.size() && units.get(first).end < prefix) first++;
+        int last = first;
+        while (last < units.size() && units.get(last).start <= editEnd) last++;
+        // Where a unit after one with syntax errors begins depends on how the parser recovered, so the region
+        // takes in every broken unit next to it and starts and ends where a unit parsed cleanly.
+        while (first > 0 && units.get(first - 1).syntaxError) first--;
+        while (last < units.size() && (units.get(last).syntaxError || last > 0 && units.get(last - 1).syntaxError)) last++;
+
+        // Units tile the document, so there is always one to start from unless it was empty.
+        int regionStart = first < units.size() ? units.get(first).start : 0;
+        int regionLine = first < units.size() ? units.get(first).line : 1;
+        int regionEnd = last == units.size() ? text.length() : units.get(last - 1).end + delta;
+        // The edit may leave the region inside a comment or string that runs on into the next unit.
+        while (last < units.size() && !endsAt(text, regionStart, regionLine, units.get(last), delta)) {
+            last++;
+            regionEnd = last == units.size() ? text.length() : units.get(last - 1).end + delta;
+        }
+
+        Token following = last < units.size() ? first(units, last) : null;
+        List<Unit> parsed = parse(text.substring(regionStart, regionEnd), regionStart, regionLine, following);
+        if (parsed == null) {
+            // A syntax error can run past the region (an unclosed brace, say), so parse to the end instead.
+            last = units.size();
+            regionEnd = text.length();
+            parsed = parse(text.substring(regionStart, regionEnd), regionStart, regionLine, null);
+        }
+
+        List<Unit> updated = new ArrayList<>(units.subList(0, first));
+        updated.addAll(parsed);
+        int lineDelta = countLines(text, regionStart, regionEnd) - countLines(old, regionStart, regionEnd - delta);
+        for (Unit unit : units.subList(last, units.size())) {
+            unit.move(delta, lineDelta);
+            updated.add(unit);
+        }
+        for (Unit unit : units.subList(first, last)) {
+            interpreter.forget(unit.statements, false);
+        }
+
+        reparsed = parsed.size();
+        units = updated;
+        source = text;
+    }
+
+    /*
+     * Scans, parses and resolves a line of REPL input, which Lox numbers from 1 like a script of its own.
+     * Returns its statements, ready to run, or null with its errors reported. Definitions the line
+     * declares replace the units of earlier ones with the same names; statements that declare nothing
+     * aren't kept. Their resolution is the interpreter's to forget once they have run.
+     * */
+    List<Stmt> append(String line) {
+        if (appended < 0) {
+            if (!source.isEmpty() || !units.isEmpty()) throw new IllegalStateException("A document's model can't be appended to.");
+            appended = 0;
+        }
+        List<Unit> parsed = parse(line, appended, 1, null);
+        List<Stmt> statements = new ArrayList<>();
+        for (Unit unit : parsed) statements.addAll(unit.statements);
+        reparsed = parsed.size();
+        if (parsed.stream().anyMatch(unit -> unit.hadError)) {
+            for (Unit unit : parsed) unit.diagnostics.forEach(Lox::report);
+            interpreter.forget(statements, false);
+            return null;
+        }
+
+        // A gap for the line break keeps tokens of different lines apart.
+        appended += line.length() + 1;
+        List<Unit> definitions = parsed.stream().filter(unit -> !globalNames(unit).isEmpty()).toList();
+        List<String> redefined = definitions.stream().flatMap(unit -> globalNames(unit).stream()).toList();
+        units.removeIf(unit -> redefined.containsAll(globalNames(unit)));
+        units.addAll(definitions);
+        return statements;
+    }
+
+    private static List<String> globalNames(Unit unit) {
+        if (unit.symbols == null) return List.of();
+        return unit.symbols.declarations.values().stream()
+                .filter(SymbolIndex.Symbol::global)
+                .map(symbol -> symbol.name().lexeme)
+                .toList();
+    }
+
+    /*
+     * Null if a region short of the end of the document has syntax errors that parsing the rest of it could
+     * change, as the caller parses again up to the end. Units with syntax errors are marked instead of resolved.
+     * */
+    private List<Unit> parse(String region, int start, int line, Token following) {
+        int end = start + region.length();
+        Lox.clearError();
+        List<Diagnostic> scanErrors = new ArrayList<>();
+        List<Diagnostic> parseErrors = new ArrayList<>();
+        List<Token> tokens;
+        List<Integer> starts = new ArrayList<>();
+        List<Stmt> statements;
+        try {
+            Lox.collectErrors(scanErrors);
+            tokens = new Scanner(region, line, start).scanTokens();
+            Lox.collectErrors(parseErrors);
+            statements = new Parser(tokens).parse(starts);
+        } finally {
+            Lox.collectErrors(null);
+        }
+        List<Diagnostic> diagnostics = new ArrayList<>(scanErrors);
+        diagnostics.addAll(parseErrors);
+        if (Lox.hadError() && following != null && runsPast(diagnostics, statements, end, following)) return null;
+
+        List<Unit> parsed = new ArrayList<>();
+        // Counted from the text: a token's line is where it ends, which for a multi-line string isn't where it starts.
+        int unitLine = line;
+        for (int i = 0; i < statements.size(); i++) {
+            int from = starts.get(i);
+            int to = i + 1 < starts.size() ? starts.get(i + 1) : tokens.size() - 1;
+            int unitStart = i == 0 ? start : tokens.get(from).offset;
+            int unitEnd = i + 1 < starts.size() ? tokens.get(to).offset : end;
+            List<Stmt> unitStatements = statements.get(i) == null ? List.of() : List.of(statements.get(i));
+            parsed.add(new Unit(unitStart, unitEnd, unitLine, new ArrayList<>(tokens.subList(from, to)), unitStatements));
+            unitLine += countLines(region, unitStart - start, unitEnd - start);
+        }
+        // Keep the units tiling the document even where it holds no declarations.
+        if (parsed.isEmpty()) parsed.add(new Unit(start, end, line, List.of(), List.of()));
+        for (Diagnostic diagnostic : scanErrors) {
+            owner(parsed, diagnostic).diagnostics.add(diagnostic);
+        }
+        for (Diagnostic diagnostic : parseErrors) {
+            Unit unit = owner(parsed, diagnostic);
+            unit.diagnostics.add(diagnostic);
+            unit.hadError = true;
+        }
+
+        /*
+         * Declarations are resolved on their own, so those that parsed are resolved even next to ones that didn't.
+         * A stray character just drops out of the tokens, but a parse error can leave nulls in the AST.
+         * */
+        for (Unit unit : parsed) {
+            boolean unparsed = unit.hadError;
+            unit.hadError = !unit.diagnostics.isEmpty();
+            unit.syntaxError = unit.hadError;
+            if (unparsed || unit.statements.isEmpty()) continue;
+            Lox.clearError();
+            Resolver resolver = new Resolver(interpreter);
+            Lox.collectErrors(unit.diagnostics);
+            try {
+                resolver.resolve(unit.statements);
+            } finally {
+                Lox.collectErrors(null);
+            }
+            unit.hadError |= Lox.hadError();
+            unit.locals = resolver.declarations();
+            unit.symbols = SymbolIndex.of(unit.statements);
+            if (!unit.hadError) new TypeInference(resolver.declarations()).infer(unit.statements);
+            Lox.clearError();
+        }
+        return parsed;
+    }
+
+    /*
+     * Whether a parse of the whole rest of the document could differ from the region's: an error at the end of
+     * the region (an unclosed block or string), or a failed last declaration whose recovery would skip on into
+     * the following one instead of stopping at its first token, as Parser.synchronize does at these keywords.
+     * */
+    private static boolean runsPast(List<Diagnostic> diagnostics, List<Stmt> statements, int end, Token following) {
+        for (Diagnostic diagnostic : diagnostics) {
+            if (diagnostic.offset() < 0 || diagnostic.offset() + diagnostic.length() >= end) return true;
+        }
+        if (statements.isEmpty() || statements.get(statements.size() - 1) != null) return false;
+        return switch (following.type) {
+            case CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, RETURN, IMPORT -> false;
+            default -> true;
+        };
+    }
+
+    /*
+     * Whether scanning from the start of the region still yields the first token of the unit following it at its
+     * moved offset, so the region ends between tokens. The scan goes on to the end of that unit to see it.
+     * */
+    private static boolean endsAt(String text, int start, int line, Unit following, int delta) {
+        if (following.tokens.isEmpty()) return false;
+        Token expected = following.tokens.get(0);
+        List<Token> tokens;
+        try {
+            Lox.collectErrors(new ArrayList<>());
+            tokens = new Scanner(text.substring(start, following.end + delta), line, start).scanTokens();
+        } finally {
+            Lox.collectErrors(null);
+            Lox.clearError();
+        }
+        for (Token token : tokens) {
+            if (token.offset == expected.offset + delta) {
+                return token.type == expected.type && token.lexeme.equals(expected.lexeme);
+            }
+            if (token.offset > expected.offset + delta) break;
+        }
+        return false;
+    }
+
+    // First token at or after the unit, so the end of the document when only empty units follow.
+    private static Token first(List<Unit> units, int index) {
+        for (Unit unit : units.subList(index, units.size())) {
+            if (!unit.tokens.isEmpty()) return unit.tokens.get(0);
+        }
+        return new Token(TokenType.EOF, "", null, 0);
+    }
+
+    // The unit an error belongs to: the one holding its offset, or for scanner errors the one holding its line.
+    private static Unit owner(List<Unit> units, Diagnostic diagnostic) {
+        Unit owner = units.get(0);
+        for (Unit unit : units) {
+            boolean after = diagnostic.offset() < 0 ? unit.line <= diagnostic.line() : unit.start <= diagnostic.offset();
+            if (after) owner = unit;
+        }
+        return owner;
+    }
+
+    // In document order, which doesn't depend on how earlier edits split the document into units.
+    List<Diagnostic> diagnostics() {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        for (Unit unit : units) diagnostics.addAll(unit.diagnostics);
+        diagnostics.sort(Comparator.comparingInt(Diagnostic::line).thenComparingInt(Diagnostic::offset));
+        return diagnostics;
+    }
+
+    // The identifier token covering the offset, or ending at it, as an editor cursor sits after a word.
+    Token tokenAt(int offset) {
+        Unit unit = unitAt(offset);
+        if (unit == null) return null;
+        for (Token token : unit.tokens) {
+            if (token.type != TokenType.IDENTIFIER) continue;
+            if (token.offset <= offset && offset <= token.offset + token.lexeme.length()) return token;
+        }
+        return null;
+    }
+
+    private Unit unitAt(int offset) {
+        int low = 0;
+        int high = units.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Unit unit = units.get(mid);
+            if (offset < unit.start) high = mid - 1;
+            // A unit ends where the next one starts; only the last one also holds the end of the document.
+            else if (offset > unit.end || offset == unit.end && mid < units.size() - 1) low = mid + 1;
+            else return unit;
+        }
+        return null;
+    }
+
+    /*
+     * The declaration a name token refers to, or the one it is itself, for tokens of a resolved unit.
+     * Globals resolve to their first top-level declaration.
+     * */
+    SymbolIndex.Symbol definition(Token token) {
+        Unit unit = unitAt(token.offset);
+        if (unit == null || unit.symbols == null) return null;
+        SymbolIndex.Symbol declared = unit.symbols.declarations.get(token);
+        if (declared != null) return declared;
+        Expr reference = unit.symbols.references.get(token);
+        if (reference == null) return null;
+        Token local = unit.locals.get(reference);
+        if (local != null) return unit.symbols.declarations.get(local);
+        for (Unit other : units) {
+            if (other.symbols == null) continue;
+            for (SymbolIndex.Symbol symbol : other.symbols.declarations.values()) {
+                if (symbol.global() && symbol.name().lexeme.equals(token.lexeme)) return symbol;
+            }
+        }
+        return null;
+    }
+
+    // Tokens naming the declared variable: every reference to it, and its declarations when asked for.
+    List<Token> references(SymbolIndex.Symbol symbol, boolean includeDeclaration) {
+        List<Token> found = new ArrayList<>();
+        if (symbol.kind() == SymbolIndex.Kind.METHOD) {
+            if (includeDeclaration) found.add(symbol.name());
+            return found;
+        }
+        for (Unit unit : units) {
+            if (unit.symbols == null) continue;
+            if (includeDeclaration) {
+                for (SymbolIndex.Symbol declared : unit.symbols.declarations.values()) {
+                    if (declared == symbol || symbol.global() && declared.global()
+                            && declared.name().lexeme.equals(symbol.name().lexeme)) {
+                        found.add(declared.name());
+                    }
+                }
+            }
+            for (Map.Entry<Token, Expr> reference : unit.symbols.references.entrySet()) {
+                Token local = unit.locals.get(reference.getValue());
+                boolean matches = symbol.global()
+                        ? local == null && reference.getKey().lexeme.equals(symbol.name().lexeme)
+                        : local == symbol.name();
+                if (matches) found.add(reference.getKey());
+            }
+        }
+        found.sort((a, b) -> Integer.compare(a.offset, b.offset));
+        return found;
+    }
+
+    List<Stmt> statements() {
+        List<Stmt> statements = new ArrayList<>();
+        for (Unit unit : units) statements.addAll(unit.statements);
+        return statements;
+    }
+
+    boolean hasErrors() {
+        return units.stream().anyMatch(unit -> unit.hadError);
+    }
+
+    int reparsed() {
+        return reparsed;
+    }
+
+    private static int countLines(String text, int start, int end) {
+        int lines = 0;
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == '\n') lines++;
+        }
+        return lines;
+    }
+
+    private static final class Unit {
+        int start;
+        // Where the next unit starts; whitespace and comments after a declaration belong to it.
+        int end;
+        int line;
+        final List<Token> tokens;
+        final List<Stmt> statements;
+        boolean hadError;
+        // Scanned or parsed with errors, as opposed to only failing to resolve.
+        boolean syntaxError;
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        // Set once the unit is resolved: the resolver's declaring tokens of local references, and its symbols.
+        Map<Expr, Token> locals;
+        SymbolIndex symbols;
+
+        Unit(int start, int end, int line, List<Token> tokens, List<Stmt> statements) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.tokens = tokens;
+            this.statements = statements;
+        }
+
+        void move(int offsetDelta, int lineDelta) {
+            start += offsetDelta;
+            end += offsetDelta;
+            line += lineDelta;
+            diagnostics.replaceAll(diagnostic -> diagnostic.moved(offsetDelta, lineDelta));
+            for (Token token : tokens) {
+                token.offset += offsetDelta;
+                token.line += lineDelta;
+            }
+        }
+    }
+}
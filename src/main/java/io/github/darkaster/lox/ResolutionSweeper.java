@@ -0,0 +1,200 @@
+package io.github.darkaster.lox;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/*
+ * Removes what the resolver recorded in the interpreter for statements that will not be resolved or run again,
+ * so that long sessions don't keep every AST they ever saw reachable through the interpreter's side tables.
+ * Function bodies can be kept, for code that has run: closures created from it may still be called.
+ * Kept bodies are collected, so they can be swept once no closure of them is left.
+ * */
+final class ResolutionSweeper implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Interpreter interpreter;
+    private final Predicate<Stmt.Function> keepBody;
+    private final List<Stmt.Function> kept;
+
+    ResolutionSweeper(Interpreter interpreter, Predicate<Stmt.Function> keepBody, List<Stmt.Function> kept) {
+        this.interpreter = interpreter;
+        this.keepBody = keepBody;
+        this.kept = kept;
+    }
+
+    void sweep(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            // Declarations that failed to parse are null.
+            if (statement != null) statement.accept(this);
+        }
+    }
+
+    private void sweep(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        sweep(expr.value);
+        interpreter.unresolve(expr);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        sweep(expr.left);
+        sweep(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        sweep(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        sweep(expr.left);
+        sweep(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        sweep(expr.object);
+        sweep(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        interpreter.unresolve(expr);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        interpreter.unresolve(expr);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        sweep(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        sweep(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        sweep(expr.callee);
+        for (Expr argument : expr.arguments) {
+            sweep(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        interpreter.unresolve(expr);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        sweep(stmt.statements);
+        interpreter.unresolve(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        sweep(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        interpreter.unresolve(stmt.name);
+        sweepFunction(stmt);
+        return null;
+    }
+
+    // Functions nested in a kept body stay with it, as running it again may create closures of them.
+    void sweepFunction(Stmt.Function function) {
+        if (keepBody.test(function)) {
+            kept.add(function);
+            return;
+        }
+        for (Token param : function.param) {
+            interpreter.unresolve(param);
+        }
+        sweep(function.body);
+        interpreter.unresolve(function);
+    }
+
+    @Override
+    public Void visitGetterStmt(Stmt.Getter stmt) {
+        return visitFunctionStmt(stmt);
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        interpreter.unresolve(stmt.name);
+        if (stmt.superclass != null) sweep(stmt.superclass);
+        for (Stmt.Function method : stmt.functions) {
+            sweepFunction(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        sweep(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        sweep(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) sweep(stmt.initializer);
+        interpreter.unresolve(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        sweep(stmt.condition);
+        stmt.statement.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) sweep(stmt.value);
+        interpreter.unresolve(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        interpreter.unresolve(stmt.name);
+        return null;
+    }
+}
@@ -1,18 +1,36 @@
 package io.github.darkaster.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
+/*
+ * Resolves every local variable reference to a Binding.
+ * Besides the scope distance, the resolver works out which locals are captured, i.e. referenced
+ * from a function other than the one declaring them. Only captured locals need a heap Environment;
+ * the rest get a slot in the declaring function's frame array. Slots of a finished block are reused.
+ * */
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private Interpreter interpreter;
-    private Stack<Map<String, Boolean>> scopes = new Stack<>();
+    // Where names not bound to a local live: the interpreter's globals, or a module's own.
+    private final Globals globals;
+    private Scope scope = null;
+    // Frame of the current function, or of top-level blocks when outside any function.
+    private Frame frame = new Frame();
     private FunctionType currentFunction = FunctionType.NONE;
+    // Declaring token of every resolved local variable reference, for TypeInference and the language server.
+    private final Map<Expr, Token> declarations = new HashMap<>();
     private ClassType currentClass = ClassType.NONE;
 
     public Resolver(Interpreter interpreter) {
+        this(interpreter, interpreter.globals);
+    }
+
+    Resolver(Interpreter interpreter, Globals globals) {
         this.interpreter = interpreter;
+        this.globals = globals;
     }
 
     @Override
@@ -74,6 +92,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             return null;
         }
         resolveLocal(expr, expr.keyword);
+        // The method is bound to the current receiver, which needs resolving as well.
+        resolveLocal(expr, "this", true);
         return null;
     }
 
@@ -102,32 +122,54 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && !scopes.peek().get(expr.name.lexeme)) {
-            Lox.error(expr.name, "Can't read local variable in its own initializer.");
+        if (scope != null) {
+            Local local = scope.locals.get(expr.name.lexeme);
+            if (local != null && !local.defined) {
+                Lox.error(expr.name, "Can't read local variable in its own initializer.");
+            }
         }
         resolveLocal(expr, expr.name);
         return null;
     }
 
     private void resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - i - 1);
-                return;
+        if (resolveLocal(expr, name.lexeme, false)) return;
+        // Not found: assume it is global.
+        interpreter.resolve(expr, Binding.global(globals.cell(name.lexeme)));
+    }
+
+    private boolean resolveLocal(Expr expr, String name, boolean receiver) {
+        for (Scope declaring = scope; declaring != null; declaring = declaring.enclosing) {
+            Local local = declaring.locals.get(name);
+            if (local != null) {
+                if (declaring.frame != frame) local.captured = true;
+                local.references.add(new Reference(expr, scope, receiver));
+                if (!receiver && local.name != null) declarations.put(expr, local.name);
+                return true;
             }
         }
+        return false;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
-        resolve(stmt.statements);
-        endScope();
+        resolveStatements(stmt.statements);
+        interpreter.resolveBlock(stmt, endScope());
         return null;
     }
 
-    void resolve(List<Stmt> statments) {
-        for (Stmt stmt : statments) {
+    void resolve(List<Stmt> statements) {
+        resolveStatements(statements);
+        interpreter.resolveScript(frame.size);
+    }
+
+    Map<Expr, Token> declarations() {
+        return declarations;
+    }
+
+    private void resolveStatements(List<Stmt> statements) {
+        for (Stmt stmt : statements) {
             resolve(stmt);
         }
     }
@@ -141,11 +183,79 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void beginScope() {
-        scopes.add(new HashMap<>());
+        scope = new Scope(scope, frame, false);
+    }
+
+    /*
+     * Closes the innermost scope and hands the final placement of its locals to the interpreter.
+     * Capture information for a local is complete once its scope ends, and every scope nested
+     * inside it has already ended, so the environment hops of each reference are known here.
+     * Returns whether the scope needs its own Environment at runtime.
+     * */
+    private boolean endScope() {
+        Scope ended = scope;
+        for (Local local : ended.locals.values()) {
+            if (local.captured) ended.hasEnvironment = true;
+        }
+
+        for (Local local : ended.locals.values()) {
+            Binding declaration = local.captured
+                    ? Binding.environment(0, local.name.lexeme)
+                    : Binding.frame(local.slot, local.name.lexeme);
+            local.binding = declaration;
+            // The receiver's placement is part of the FunctionLayout; its token exists only here.
+            if (local.name.type != TokenType.THIS) interpreter.declare(local.name, declaration);
+
+            for (Reference reference : local.references) {
+                if (!local.captured) {
+                    bind(reference, declaration);
+                    continue;
+                }
+                bind(reference, Binding.environment(hops(reference, ended), local.name.lexeme));
+            }
+        }
+
+        frame.next = ended.firstSlot;
+        scope = ended.enclosing;
+        return ended.hasEnvironment;
+    }
+
+    private void bind(Reference reference, Binding binding) {
+        if (reference.receiver) {
+            interpreter.resolveReceiver((Expr.Super) reference.expr, binding);
+        } else {
+            interpreter.resolve(reference.expr, binding);
+        }
+    }
+
+    // Counts the Environments between the referencing scope and the declaring one.
+    private int hops(Reference reference, Scope declaring) {
+        int hops = 0;
+        for (Scope s = reference.scope; s != declaring; s = s.enclosing) {
+            if (s.hasEnvironment) hops++;
+        }
+        return hops;
     }
 
-    private void endScope() {
-        scopes.pop();
+    /*
+     * Begins a scope that always lives in an Environment, like the one holding "super".
+     * */
+    private void beginEnvironmentScope(String name) {
+        scope = new Scope(scope, frame, true);
+        Local local = new Local(null, -1);
+        local.defined = true;
+        local.captured = true;
+        scope.locals.put(name, local);
+    }
+
+    private void endEnvironmentScope() {
+        Scope ended = scope;
+        for (Map.Entry<String, Local> entry : ended.locals.entrySet()) {
+            for (Reference reference : entry.getValue().references) {
+                bind(reference, Binding.environment(hops(reference, ended), entry.getKey()));
+            }
+        }
+        scope = ended.enclosing;
     }
 
     @Override
@@ -158,10 +268,20 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitFunctionStmt(Stmt.Function stmt) {
         declare(stmt.name);
         define(stmt.name);
-        resolveFunction(stmt, FunctionType.FUNCTION);
+        // Deferred bodies are top-level, so they can't capture locals and are resolved on their own when first called.
+        if (stmt.deferred != null) {
+            interpreter.deferFunction(stmt, globals);
+        } else {
+            resolveFunction(stmt, FunctionType.FUNCTION);
+        }
         return null;
     }
 
+    // Resolves a top-level function whose body was deferred, once it has been parsed.
+    void resolveDeferred(Stmt.Function function) {
+        resolveFunction(function, FunctionType.FUNCTION);
+    }
+
     @Override
     public Void visitGetterStmt(Stmt.Getter stmt) {
         declare(stmt.name);
@@ -181,14 +301,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         define(stmt.name);
 
         if (stmt.superclass != null) {
-            beginScope();
-            scopes.peek().put("super", true);
+            if (stmt.superclass.name.lexeme.equals(stmt.name.lexeme)) {
+                Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
+            }
+            resolve(stmt.superclass);
+            beginEnvironmentScope("super");
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
-
         for (Stmt.Function method : stmt.functions) {
             FunctionType declaration = FunctionType.METHOD;
 
@@ -197,23 +316,42 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, declaration);
         }
 
-        endScope();
-        if (stmt.superclass != null) endScope();
+        if (stmt.superclass != null) endEnvironmentScope();
         currentClass = enclosingClass;
         return null;
     }
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
+        Frame enclosingFrame = frame;
         currentFunction = type;
+        frame = new Frame();
         beginScope();
 
+        // Methods receive "this" like a hidden first parameter, so calls need no bound Environment.
+        Local receiver = null;
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            Token self = new Token(TokenType.THIS, "this", null, function.name.line);
+            receiver = declare(self);
+            define(self);
+        }
+
+        List<Local> params = new ArrayList<>();
         for (Token token : function.param) {
-            declare(token);
+            params.add(declare(token));
             define(token);
         }
-        resolve(function.body);
-        endScope();
+        resolveStatements(function.body);
+        boolean hasEnvironment = endScope();
+
+        Binding[] paramBindings = new Binding[params.size()];
+        for (int i = 0; i < paramBindings.length; i++) {
+            paramBindings[i] = params.get(i).binding;
+        }
+        Binding receiverBinding = receiver == null ? null : receiver.binding;
+        interpreter.resolveFunction(function, new FunctionLayout(frame.size, hasEnvironment, receiverBinding, paramBindings));
+
+        frame = enclosingFrame;
         currentFunction = enclosingFunction;
     }
 
@@ -242,19 +380,23 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
-        var scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+    private Local declare(Token name) {
+        if (scope == null) {
+            interpreter.declare(name, Binding.global(globals.cell(name.lexeme)));
+            return null;
+        }
+        if (scope.locals.containsKey(name.lexeme)) {
             Lox.error(name, "Already a variable with this name in this scope.");
         }
-        scope.put(name.lexeme, false);
+        Local local = new Local(name, frame.next++);
+        frame.size = Math.max(frame.size, frame.next);
+        scope.locals.put(name.lexeme, local);
+        return local;
     }
 
     private void define(Token name) {
-        if (scopes.isEmpty()) return;
-        var scope = scopes.peek();
-        scope.put(name.lexeme, true);
+        if (scope == null) return;
+        scope.locals.get(name.lexeme).defined = true;
     }
 
     @Override
@@ -273,10 +415,23 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             if (currentFunction == FunctionType.INITIALIZER)
                 Lox.error(stmt.keyword, "can't return a value from initializer");
             resolve(stmt.value);
+            // Returning the result of a call is a tail call, run without growing the stack.
+            if (stmt.value instanceof Expr.Call && currentFunction != FunctionType.NONE) {
+                interpreter.resolveTailCall(stmt);
+            }
         }
         return null;
     }
 
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        // Imports resolve paths against the directory of the file running them, which is only known at the top level.
+        if (scope != null) Lox.error(stmt.keyword, "Can only import at the top level.");
+        declare(stmt.name);
+        define(stmt.name);
+        return null;
+    }
+
     private enum FunctionType {
         NONE, FUNCTION, INITIALIZER, METHOD, GETTER
     }
@@ -284,4 +439,42 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private enum ClassType {
         NONE, SUBCLASS, CLASS
     }
+
+    private static class Frame {
+        int next = 0;
+        int size = 0;
+    }
+
+    private static class Scope {
+        final Scope enclosing;
+        final Frame frame;
+        final int firstSlot;
+        final Map<String, Local> locals = new LinkedHashMap<>();
+        boolean hasEnvironment;
+
+        Scope(Scope enclosing, Frame frame, boolean hasEnvironment) {
+            this.enclosing = enclosing;
+            this.frame = frame;
+            this.firstSlot = frame.next;
+            this.hasEnvironment = hasEnvironment;
+        }
+    }
+
+    private static class Local {
+        final Token name;
+        final int slot;
+        final List<Reference> references = new ArrayList<>();
+        boolean defined = false;
+        boolean captured = false;
+        Binding binding;
+
+        Local(Token name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+    }
+
+    // A receiver reference resolves the "this" that a super expression binds its method to.
+    private record Reference(Expr expr, Scope scope, boolean receiver) {
+    }
 }
@@ -1,10 +1,60 @@
 package io.github.darkaster.lox;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class RuntimeError extends RuntimeException {
+    // Deep recursion would make traces huge; only the innermost calls are kept.
+    private static final int MAX_TRACE_FRAMES = 32;
+
     public final Token token;
+    // Frames are stored raw and formatted in trace(), since they may be added with almost no stack left.
+    private final List<LoxCallable> functions = new ArrayList<>();
+    private final List<Token> callSites = new ArrayList<>();
+    private int omittedFrames = 0;
 
     public RuntimeError(Token token, String message) {
-        super(message);
+        // The Java stack trace says nothing about the Lox program, so skip capturing it.
+        super(message, null, false, false);
         this.token = token;
     }
+
+    RuntimeError at(Token token) {
+        return new RuntimeError(token, getMessage());
+    }
+
+    /*
+     * Records a Lox call the error propagated out of, innermost first.
+     * */
+    void addFrame(LoxCallable function, Token callSite) {
+        if (functions.size() < MAX_TRACE_FRAMES) {
+            functions.add(function);
+            callSites.add(callSite);
+        } else {
+            omittedFrames++;
+        }
+    }
+
+    /*
+     * Formats the Lox stack trace, collapsing runs of identical frames as recursion produces them.
+     * */
+    List<String> trace() {
+        List<String> lines = new ArrayList<>();
+        String previous = null;
+        int repeats = 0;
+        for (int i = 0; i < functions.size(); i++) {
+            String line = "at %s, called from line %d".formatted(functions.get(i), callSites.get(i).line);
+            if (line.equals(previous)) {
+                repeats++;
+                continue;
+            }
+            if (repeats > 0) lines.add("[previous frame repeated %d more times]".formatted(repeats));
+            lines.add(line);
+            previous = line;
+            repeats = 0;
+        }
+        if (repeats > 0) lines.add("[previous frame repeated %d more times]".formatted(repeats));
+        if (omittedFrames > 0) lines.add("... %d more".formatted(omittedFrames));
+        return lines;
+    }
 }
@@ -29,16 +29,25 @@ public class Scanner {
         keywords.put("var", VAR);
         keywords.put("while", WHILE);
         keywords.put("static", STATIC);
+        keywords.put("import", IMPORT);
     }
 
     private final String source;
     private final List<Token> tokens = new ArrayList<>();
     private int start = 0;
     private int current = 0;
-    private int line = 1;
+    private int line;
+    // Offset of this source within a larger document, for ProgramModel.
+    private final int offset;
 
     public Scanner(String source) {
+        this(source, 1, 0);
+    }
+
+    Scanner(String source, int line, int offset) {
         this.source = source;
+        this.line = line;
+        this.offset = offset;
     }
 
     public List<Token> scanTokens() {
@@ -48,7 +57,7 @@ public class Scanner {
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(new Token(EOF, "", null, line, offset + current));
         return tokens;
     }
 
@@ -79,7 +88,7 @@ public class Scanner {
                         if (peek() == '\n') line++;
                         advance();
                     }
-                    if (isAtEnd()) Lox.error(line, "Unclosed comment");
+                    if (isAtEnd()) error("Unclosed comment");
                     else {
                         advance(); // consume *
                         advance(); // consume /
@@ -99,7 +108,7 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    error("Unexpected character.");
                 }
             }
         }
@@ -114,6 +123,17 @@ public class Scanner {
         addToken(tokenType);
     }
 
+    // Whether the text would scan as a single identifier.
+    static boolean isIdentifier(String text) {
+        if (text.isEmpty() || keywords.containsKey(text)) return false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            boolean valid = Character.isAlphabetic(c) || c == '_' || (i > 0 && Character.isDigit(c));
+            if (!valid) return false;
+        }
+        return true;
+    }
+
     private boolean isAlphanumeric(char c) {
         return isAlpha(c) || isDigit(c);
     }
@@ -144,6 +164,10 @@ public class Scanner {
         return current + 1 >= source.length();
     }
 
+    private void error(String message) {
+        Lox.error(line, offset + start, current - start, message);
+    }
+
     private boolean isDigit(char c) {
         return Character.isDigit(c);
     }
@@ -155,7 +179,8 @@ public class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated String");
+            error("Unterminated String");
+            return;
         }
 
         // The closing ".
@@ -189,7 +214,7 @@ public class Scanner {
 
     private void addToken(TokenType type, Object literal) {
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(new Token(type, text, literal, line, offset + start));
     }
 
     private boolean isAtEnd() {
@@ -0,0 +1,414 @@
+package io.github.darkaster.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/*
+ * Saves an interpreter's globals, and every value reachable from them, to a binary file that another interpreter
+ * can load instead of running the code that built them (a prelude of classes and lookup tables, say).
+ * Functions and classes refer to their declarations, so the file also holds the source they were declared in:
+ * restoring parses and resolves it, but doesn't run it, and finds each declaration again by its offset.
+ * Environments are kept, and shared, as they were, so closures and super calls work as before.
+ * Natives are saved by the global name they had; memoized functions lose their caches.
+ * Values from imported modules can't be saved, since their code is in other files.
+ *
+ * The file is the source and a string table, then objects in creation order (an object comes after everything its
+ * constructor needs), then the contents of environments and instances, which may refer to any object, then globals.
+ * Counts, indexes and whole numbers are varints.
+ * */
+public final class Snapshot {
+    private static final int MAGIC = 0x4C4F5853;
+    private static final int VERSION = 1;
+
+    private static final byte NIL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+    private static final byte OBJECT = 5;
+    private static final byte NATIVE = 6;
+    // A number that is a whole int, written as a varint.
+    private static final byte INTEGER = 7;
+
+    private static final byte ENVIRONMENT = 0;
+    private static final byte FUNCTION = 1;
+    private static final byte CLASS = 2;
+    private static final byte INSTANCE = 3;
+    private static final byte MEMOIZED = 4;
+
+    // Stands for the root environment, which every interpreter has its own of.
+    private static final int ROOT = -1;
+
+    private Snapshot() {
+    }
+
+    /*
+     * Writes the globals of an interpreter that has run source, and only that, to path.
+     * Throws IllegalStateException for values that can't be saved.
+     * */
+    public static void save(Interpreter interpreter, String source, Path path) throws IOException {
+        Writer writer = new Writer(interpreter, source);
+        writer.globals(interpreter.globals);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            writer.writeTo(out);
+        }
+    }
+
+    /*
+     * Defines the globals saved in path in an interpreter, along with the declarations of the saved source.
+     * */
+    public static void restore(Interpreter interpreter, Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            new Reader(interpreter, in).read();
+        }
+    }
+
+    private static final class Writer {
+        private final String source;
+        // Natives the interpreter started with, by identity, and the global they were found in.
+        private final Map<Object, String> natives = new IdentityHashMap<>();
+        private final Map<Object, Integer> ids = new IdentityHashMap<>();
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        // Objects whose contents are yet to be written.
+        private final ArrayDeque<Object> unwritten = new ArrayDeque<>();
+        private final ByteArrayOutputStream objectBytes = new ByteArrayOutputStream();
+        private final DataOutputStream objects = new DataOutputStream(objectBytes);
+        private final ByteArrayOutputStream contentBytes = new ByteArrayOutputStream();
+        private final DataOutputStream contents = new DataOutputStream(contentBytes);
+        private final ByteArrayOutputStream globalBytes = new ByteArrayOutputStream();
+        private final DataOutputStream globals = new DataOutputStream(globalBytes);
+        private int contentCount = 0;
+        private int globalCount = 0;
+
+        Writer(Interpreter interpreter, String source) {
+            this.source = source;
+            for (GlobalCell cell : interpreter.globals.cells()) {
+                if (cell.defined && isNative(cell.value)) natives.putIfAbsent(cell.value, cell.name);
+            }
+        }
+
+        void globals(Globals table) throws IOException {
+            for (GlobalCell cell : table.cells()) {
+                // The restoring interpreter defines its natives itself.
+                if (!cell.defined || cell.name.equals(natives.get(cell.value))) continue;
+                writeVarint(globals, string(cell.name));
+                value(globals, cell.value);
+                globalCount++;
+                while (!unwritten.isEmpty()) contents(unwritten.poll());
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, source);
+            writeVarint(out, strings.size());
+            for (String string : strings.keySet()) writeString(out, string);
+            writeVarint(out, ids.size());
+            objectBytes.writeTo(out);
+            writeVarint(out, contentCount);
+            contentBytes.writeTo(out);
+            writeVarint(out, globalCount);
+            globalBytes.writeTo(out);
+        }
+
+        private void value(DataOutputStream out, Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NIL);
+            } else if (value instanceof Boolean bool) {
+                out.writeByte(bool ? TRUE : FALSE);
+            } else if (value instanceof Double number && isInteger(number)) {
+                out.writeByte(INTEGER);
+                writeVarint(out, number.intValue());
+            } else if (value instanceof Double number) {
+                out.writeByte(NUMBER);
+                out.writeDouble(number);
+            } else if (value instanceof String string) {
+                out.writeByte(STRING);
+                writeVarint(out, string(string));
+            } else if (natives.containsKey(value)) {
+                out.writeByte(NATIVE);
+                writeVarint(out, string(natives.get(value)));
+            } else {
+                int id = object(value);
+                out.writeByte(OBJECT);
+                writeVarint(out, id);
+            }
+        }
+
+        // Id of the object, writing it first, after the objects its constructor needs, if it is new.
+        private int object(Object value) throws IOException {
+            Integer known = ids.get(value);
+            if (known != null) return known;
+
+            if (value instanceof Environment environment) {
+                int enclosing = environment(environment.enclosing);
+                objects.writeByte(ENVIRONMENT);
+                writeVarint(objects, enclosing);
+            } else if (value instanceof LoxClass klass) {
+                Map<String, Integer> methods = new LinkedHashMap<>();
+                for (LoxFunction method : klass.methods()) {
+                    methods.put(method.declaration.name.lexeme, object(method));
+                }
+                objects.writeByte(CLASS);
+                writeVarint(objects, declared(klass.name()));
+                writeVarint(objects, methods.size());
+                for (Map.Entry<String, Integer> method : methods.entrySet()) {
+                    writeVarint(objects, string(method.getKey()));
+                    writeVarint(objects, method.getValue());
+                }
+            } else if (value instanceof LoxInstance instance) {
+                int klass = object(instance.klass());
+                objects.writeByte(INSTANCE);
+                writeVarint(objects, klass);
+            } else if (value instanceof LoxFunction function) {
+                int closure = environment(function.closure);
+                int receiver = function.receiver == null ? -1 : object(function.receiver);
+                objects.writeByte(FUNCTION);
+                writeVarint(objects, declared(function.declaration.name));
+                objects.writeBoolean(function.isInitializer);
+                writeVarint(objects, closure);
+                writeVarint(objects, receiver);
+            } else if (value instanceof MemoizedFunction memoized) {
+                // Make sure an object being wrapped is created first.
+                if (!isNative(memoized.function())) object(memoized.function());
+                objects.writeByte(MEMOIZED);
+                value(objects, memoized.function());
+                writeVarint(objects, memoized.capacity());
+            } else if (value instanceof LoxModule) {
+                throw new IllegalStateException("Can't save " + value + " in a snapshot.");
+            } else {
+                throw new IllegalStateException("Can't save '" + value + "' in a snapshot.");
+            }
+
+            int id = ids.size();
+            ids.put(value, id);
+            if (value instanceof Environment || value instanceof LoxInstance) unwritten.add(value);
+            return id;
+        }
+
+        private int environment(Environment environment) throws IOException {
+            return environment.enclosing == null ? ROOT : object(environment);
+        }
+
+        // Objects first met here are added to the objects, which are all read before any contents.
+        private void contents(Object value) throws IOException {
+            List<String> names = new ArrayList<>();
+            List<Object> values = new ArrayList<>();
+            BiConsumer<String, Object> entry = (name, local) -> {
+                names.add(name);
+                values.add(local);
+            };
+            if (value instanceof Environment environment) environment.forEach(entry);
+            else ((LoxInstance) value).fields(entry);
+
+            writeVarint(contents, ids.get(value));
+            writeVarint(contents, names.size());
+            for (int i = 0; i < names.size(); i++) {
+                writeVarint(contents, string(names.get(i)));
+                value(contents, values.get(i));
+            }
+            contentCount++;
+        }
+
+        // Offset of a declaration's name, after checking the saved source declares it there.
+        private int declared(Token name) {
+            if (name.offset < 0 || !source.startsWith(name.lexeme, name.offset)) {
+                throw new IllegalStateException("Can't save '" + name.lexeme + "': it wasn't declared in the saved source.");
+            }
+            return name.offset;
+        }
+
+        private int string(String string) {
+            return strings.computeIfAbsent(string, s -> strings.size());
+        }
+    }
+
+    private static boolean isNative(Object value) {
+        return value instanceof LoxCallable && !(value instanceof LoxFunction)
+                && !(value instanceof LoxClass) && !(value instanceof MemoizedFunction);
+    }
+
+    private static final class Reader {
+        private final Interpreter interpreter;
+        private final DataInputStream in;
+        // Functions and classes of the saved source, by the offset of their names.
+        private final Map<Integer, Stmt> declarations = new HashMap<>();
+        private String[] strings;
+        private Object[] objects;
+
+        Reader(Interpreter interpreter, DataInputStream in) {
+            this.interpreter = interpreter;
+            this.in = in;
+        }
+
+        void read() throws IOException {
+            if (in.readInt() != MAGIC) throw new IOException("Not a snapshot.");
+            if (in.readInt() != VERSION) throw new IOException("Unsupported snapshot version.");
+
+            List<Stmt> statements = Lox.parse(readString(in));
+            if (statements == null || !Lox.prepare(interpreter, statements)) {
+                throw new IOException("The saved source has errors.");
+            }
+            collect(statements);
+
+            strings = new String[readVarint(in)];
+            for (int i = 0; i < strings.length; i++) strings[i] = readString(in);
+
+            objects = new Object[readVarint(in)];
+            for (int i = 0; i < objects.length; i++) objects[i] = object();
+
+            int contents = readVarint(in);
+            for (int i = 0; i < contents; i++) {
+                Object target = objects[readVarint(in)];
+                int count = readVarint(in);
+                for (int j = 0; j < count; j++) {
+                    String name = strings[readVarint(in)];
+                    Object value = value();
+                    if (target instanceof Environment environment) environment.define(name, value);
+                    else ((LoxInstance) target).set(name, value);
+                }
+            }
+
+            int globals = readVarint(in);
+            for (int i = 0; i < globals; i++) {
+                String name = strings[readVarint(in)];
+                interpreter.globals.define(name, value());
+            }
+        }
+
+        private Object object() throws IOException {
+            byte kind = in.readByte();
+            return switch (kind) {
+                case ENVIRONMENT -> new Environment(environment(readVarint(in)));
+                case CLASS -> {
+                    Stmt.Class declaration = declaration(readVarint(in), Stmt.Class.class);
+                    Map<String, LoxFunction> methods = new HashMap<>();
+                    int count = readVarint(in);
+                    for (int i = 0; i < count; i++) {
+                        String name = strings[readVarint(in)];
+                        methods.put(name, (LoxFunction) objects[readVarint(in)]);
+                    }
+                    yield new LoxClass(declaration.name, methods, null);
+                }
+                case INSTANCE -> new LoxInstance((LoxClass) objects[readVarint(in)]);
+                case FUNCTION -> {
+                    Stmt.Function declaration = declaration(readVarint(in), Stmt.Function.class);
+                    boolean isInitializer = in.readBoolean();
+                    Environment closure = environment(readVarint(in));
+                    int receiver = readVarint(in);
+                    FunctionLayout layout = interpreter.layout(declaration);
+                    LoxFunction function = declaration instanceof Stmt.Getter getter
+                            ? new LoxGetter(getter, layout, closure)
+                            : new LoxFunction(declaration, layout, closure, isInitializer);
+                    yield receiver < 0 ? function : function.bind((LoxInstance) objects[receiver]);
+                }
+                case MEMOIZED -> new MemoizedFunction((LoxCallable) value(), readVarint(in));
+                default -> throw new IOException("Corrupt snapshot: unknown object kind " + kind + ".");
+            };
+        }
+
+        private Object value() throws IOException {
+            byte tag = in.readByte();
+            return switch (tag) {
+                case NIL -> null;
+                case FALSE -> false;
+                case TRUE -> true;
+                case NUMBER -> in.readDouble();
+                case INTEGER -> (double) readVarint(in);
+                case STRING -> strings[readVarint(in)];
+                case OBJECT -> objects[readVarint(in)];
+                case NATIVE -> {
+                    String name = strings[readVarint(in)];
+                    GlobalCell cell = interpreter.globals.cell(name);
+                    if (!cell.defined || !isNative(cell.value)) throw new IOException("Unknown native '" + name + "'.");
+                    yield cell.value;
+                }
+                default -> throw new IOException("Corrupt snapshot: unknown value tag " + tag + ".");
+            };
+        }
+
+        private Environment environment(int id) {
+            return id == ROOT ? interpreter.environment() : (Environment) objects[id];
+        }
+
+        private <T extends Stmt> T declaration(int offset, Class<T> type) throws IOException {
+            Stmt declaration = declarations.get(offset);
+            if (!type.isInstance(declaration)) {
+                throw new IOException("Corrupt snapshot: no declaration at offset " + offset + ".");
+            }
+            return type.cast(declaration);
+        }
+
+        // Every function and class declaration, however deeply nested.
+        private void collect(List<Stmt> statements) {
+            for (Stmt statement : statements) collect(statement);
+        }
+
+        private void collect(Stmt statement) {
+            if (statement instanceof Stmt.Function function) {
+                declarations.put(function.name.offset, function);
+                collect(function.body);
+            } else if (statement instanceof Stmt.Class klass) {
+                declarations.put(klass.name.offset, klass);
+                for (Stmt.Function method : klass.functions) collect(method);
+            } else if (statement instanceof Stmt.Block block) {
+                collect(block.statements);
+            } else if (statement instanceof Stmt.If branch) {
+                collect(branch.thenBranch);
+                if (branch.elseBranch != null) collect(branch.elseBranch);
+            } else if (statement instanceof Stmt.While loop) {
+                collect(loop.statement);
+            }
+        }
+    }
+
+    private static boolean isInteger(double number) {
+        return number == (int) number && (number != 0 || 1 / number > 0);
+    }
+
+    // Zigzag-encoded base-128 varint, so small numbers of either sign take a byte or two.
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        int bits = (value << 1) ^ (value >> 31);
+        while ((bits & ~0x7F) != 0) {
+            out.writeByte((bits & 0x7F) | 0x80);
+            bits >>>= 7;
+        }
+        out.writeByte(bits);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int bits = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            bits |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return (bits >>> 1) ^ -(bits & 1);
+        }
+        throw new IOException("Corrupt snapshot: malformed number.");
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(readVarint(in)), StandardCharsets.UTF_8);
+    }
+}
@@ -25,6 +25,8 @@ abstract class Stmt {
         R visitWhileStmt(While stmt);
 
         R visitReturnStmt(Return stmt);
+
+        R visitImportStmt(Import stmt);
     }
 
     static class Block extends Stmt {
@@ -56,7 +58,9 @@ abstract class Stmt {
     static class Function extends Stmt {
         final Token name;
         final List<Token> param;
-        final List<Stmt> body;
+        List<Stmt> body;
+        // Tokens of a body the parser skipped in lazy mode, until Parser.parseDeferred parses it; body is empty till then.
+        List<Token> deferred;
 
         public Function(Token name, List<Token> param, List<Stmt> body) {
             this.name = name;
@@ -144,10 +148,12 @@ abstract class Stmt {
     }
 
     static class While extends Stmt {
+        final Token keyword;
         final Expr condition;
         final Stmt statement;
 
-        public While(Expr condition, Stmt statement) {
+        public While(Token keyword, Expr condition, Stmt statement) {
+            this.keyword = keyword;
             this.condition = condition;
             this.statement = statement;
         }
@@ -173,4 +179,20 @@ abstract class Stmt {
         }
     }
 
+    static class Import extends Stmt {
+        final Token keyword;
+        final Token path;
+        final Token name;
+
+        public Import(Token keyword, Token path, Token name) {
+            this.keyword = keyword;
+            this.path = path;
+            this.name = name;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitImportStmt(this);
+        }
+    }
 }
@@ -0,0 +1,215 @@
+package io.github.darkaster.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/*
+ * The declarations and variable references in one top-level unit, for the language server.
+ * Which declaration a reference means comes from the resolver: locals through Resolver.declarations,
+ * and anything it left unresolved is a global, found by name among the top-level symbols.
+ * */
+final class SymbolIndex implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    enum Kind {VARIABLE, FUNCTION, CLASS, PARAMETER, METHOD, MODULE}
+
+    record Symbol(Kind kind, Token name, String detail, boolean global) {
+    }
+
+    final Map<Token, Symbol> declarations = new HashMap<>();
+    // The name token of every variable read or assignment, and the expression it belongs to.
+    final Map<Token, Expr> references = new HashMap<>();
+    private int depth = 0;
+
+    static SymbolIndex of(List<Stmt> statements) {
+        SymbolIndex index = new SymbolIndex();
+        index.index(statements);
+        return index;
+    }
+
+    private void index(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement != null) statement.accept(this);
+        }
+    }
+
+    private void index(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void declare(Kind kind, Token name, String detail) {
+        declarations.put(name, new Symbol(kind, name, detail, depth == 0 && kind != Kind.METHOD));
+    }
+
+    private static String signature(String prefix, Stmt.Function function) {
+        String params = function.param.stream().map(param -> param.lexeme).collect(Collectors.joining(", "));
+        if (function instanceof Stmt.Getter) return prefix + function.name.lexeme;
+        return prefix + function.name.lexeme + "(" + params + ")";
+    }
+
+    private void indexFunction(Stmt.Function function) {
+        depth++;
+        for (Token param : function.param) {
+            declare(Kind.PARAMETER, param, "parameter " + param.lexeme);
+        }
+        index(function.body);
+        depth--;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        index(expr.value);
+        references.put(expr.name, expr);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        index(expr.left);
+        index(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        index(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        index(expr.left);
+        index(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        index(expr.object);
+        index(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        index(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        index(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        index(expr.callee);
+        for (Expr argument : expr.arguments) {
+            index(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        references.put(expr.name, expr);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        depth++;
+        index(stmt.statements);
+        depth--;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        index(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(Kind.FUNCTION, stmt.name, signature("fun ", stmt));
+        indexFunction(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitGetterStmt(Stmt.Getter stmt) {
+        return visitFunctionStmt(stmt);
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        String detail = "class " + stmt.name.lexeme;
+        if (stmt.superclass != null) {
+            detail += " < " + stmt.superclass.name.lexeme;
+            index(stmt.superclass);
+        }
+        declare(Kind.CLASS, stmt.name, detail);
+        for (Stmt.Function method : stmt.functions) {
+            declare(Kind.METHOD, method.name, signature(stmt.name.lexeme + ".", method));
+            indexFunction(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        index(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        index(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) index(stmt.initializer);
+        declare(Kind.VARIABLE, stmt.name, "var " + stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        index(stmt.condition);
+        stmt.statement.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) index(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        declare(Kind.MODULE, stmt.name, "import " + stmt.path.lexeme);
+        return null;
+    }
+}
@@ -0,0 +1,10 @@
+package io.github.darkaster.lox;
+
+import java.util.List;
+
+/*
+ * Return value of a call in tail position that has not been run yet.
+ * LoxFunction.invoke runs it in place of the activation that returned it.
+ * */
+record TailCall(LoxFunction function, List<Object> arguments) {
+}
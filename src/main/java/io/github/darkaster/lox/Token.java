@@ -4,13 +4,21 @@ public class Token {
     final TokenType type;
     final String lexeme;
     final Object literal;
-    final int line;
+    // Position in the source; ProgramModel moves tokens when an edit above them adds or removes text.
+    int line;
+    // Character offset of the lexeme, or -1 for tokens made up by the resolver.
+    int offset;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, -1);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, int offset) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.offset = offset;
     }
 
     public String toString() {
@@ -17,7 +17,7 @@ enum TokenType {
 
     // Keywords.
     AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR,
-    PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE, STATIC,
+    PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE, STATIC, IMPORT,
 
     EOF
 }
\ No newline at end of file
@@ -0,0 +1,229 @@
+package io.github.darkaster.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Infers the types of local variables and expressions after resolution.
+ * A local's type is the join of everything ever stored in it: its initializer and every
+ * assignment, all of which are lexically inside its scope. Locals start at BOTTOM and the
+ * program is re-walked until no type changes. Globals and parameters are always UNKNOWN.
+ * Binary expressions whose operands are proven numbers (or strings) are then marked, so the
+ * interpreter can skip its operand checks for them.
+ * */
+class TypeInference implements Expr.Visitor<LoxType>, Stmt.Visitor<Void> {
+    private final Map<Expr, Token> declarations;
+    private final Map<Token, LoxType> types = new HashMap<>();
+    private boolean changed;
+    private boolean annotate = false;
+
+    TypeInference(Map<Expr, Token> declarations) {
+        this.declarations = declarations;
+    }
+
+    void infer(List<Stmt> statements) {
+        do {
+            changed = false;
+            infer(statements, false);
+        } while (changed);
+
+        infer(statements, true);
+    }
+
+    private void infer(List<Stmt> statements, boolean annotate) {
+        this.annotate = annotate;
+        for (Stmt statement : statements) {
+            if (statement != null) statement.accept(this);
+        }
+    }
+
+    private LoxType infer(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void store(Token declaration, LoxType type) {
+        LoxType current = types.getOrDefault(declaration, LoxType.BOTTOM);
+        LoxType joined = current.join(type);
+        if (joined != current) {
+            types.put(declaration, joined);
+            changed = true;
+        }
+    }
+
+    private LoxType typeOf(Expr reference) {
+        Token declaration = declarations.get(reference);
+        if (declaration == null) return LoxType.UNKNOWN;
+        return types.getOrDefault(declaration, LoxType.BOTTOM);
+    }
+
+    @Override
+    public LoxType visitAssignExpr(Expr.Assign expr) {
+        LoxType type = infer(expr.value);
+        Token declaration = declarations.get(expr);
+        if (declaration != null) store(declaration, type);
+        return type;
+    }
+
+    @Override
+    public LoxType visitBinaryExpr(Expr.Binary expr) {
+        LoxType left = infer(expr.left);
+        LoxType right = infer(expr.right);
+        if (annotate && left == right && (left == LoxType.NUMBER || left == LoxType.STRING)) {
+            expr.operandType = left;
+        }
+
+        return switch (expr.operator.type) {
+            case PLUS -> {
+                if (left == LoxType.NUMBER && right == LoxType.NUMBER) yield LoxType.NUMBER;
+                if (left == LoxType.STRING || right == LoxType.STRING) yield LoxType.STRING;
+                if (left == LoxType.BOTTOM || right == LoxType.BOTTOM) yield LoxType.BOTTOM;
+                yield LoxType.UNKNOWN;
+            }
+            // These either produce a number or throw.
+            case MINUS, SLASH, STAR -> LoxType.NUMBER;
+            case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, EQUAL_EQUAL, BANG_EQUAL, BANG -> LoxType.BOOLEAN;
+            default -> LoxType.UNKNOWN;
+        };
+    }
+
+    @Override
+    public LoxType visitGroupingExpr(Expr.Grouping expr) {
+        return infer(expr.expression);
+    }
+
+    @Override
+    public LoxType visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) return LoxType.NIL;
+        if (expr.value instanceof Double) return LoxType.NUMBER;
+        if (expr.value instanceof String) return LoxType.STRING;
+        if (expr.value instanceof Boolean) return LoxType.BOOLEAN;
+        return LoxType.UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitLogicalExpr(Expr.Logical expr) {
+        // The result is one of the operands.
+        return infer(expr.left).join(infer(expr.right));
+    }
+
+    @Override
+    public LoxType visitSetExpr(Expr.Set expr) {
+        infer(expr.object);
+        return infer(expr.value);
+    }
+
+    @Override
+    public LoxType visitThisExpr(Expr.This expr) {
+        return LoxType.UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitSuperExpr(Expr.Super expr) {
+        return LoxType.UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitGetExpr(Expr.Get expr) {
+        infer(expr.object);
+        return LoxType.UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitUnaryExpr(Expr.Unary expr) {
+        infer(expr.right);
+        return expr.operator.type == TokenType.MINUS ? LoxType.NUMBER : LoxType.BOOLEAN;
+    }
+
+    @Override
+    public LoxType visitCallExpr(Expr.Call expr) {
+        infer(expr.callee);
+        for (Expr argument : expr.arguments) {
+            infer(argument);
+        }
+        return LoxType.UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitVariableExpr(Expr.Variable expr) {
+        return typeOf(expr);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        infer(stmt.statements, annotate);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        store(stmt.name, LoxType.UNKNOWN);
+        for (Token param : stmt.param) {
+            store(param, LoxType.UNKNOWN);
+        }
+        infer(stmt.body, annotate);
+        return null;
+    }
+
+    @Override
+    public Void visitGetterStmt(Stmt.Getter stmt) {
+        return visitFunctionStmt(stmt);
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        store(stmt.name, LoxType.UNKNOWN);
+        for (Stmt.Function method : stmt.functions) {
+            for (Token param : method.param) {
+                store(param, LoxType.UNKNOWN);
+            }
+            infer(method.body, annotate);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        infer(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        store(stmt.name, stmt.initializer == null ? LoxType.NIL : infer(stmt.initializer));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        infer(stmt.condition);
+        stmt.statement.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) infer(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        store(stmt.name, LoxType.UNKNOWN);
+        return null;
+    }
+}
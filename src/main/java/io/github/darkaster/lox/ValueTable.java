@@ -0,0 +1,83 @@
+package io.github.darkaster.lox;
+
+import java.util.function.BiConsumer;
+
+/*
+ * Small open-addressing map from names to Lox values, used for scopes and instance members.
+ * Lox nil is stored as null, so a missing key is reported as ABSENT and every operation needs
+ * a single probe sequence instead of containsKey followed by get or put.
+ * Tables start with room for the three or four names a typical scope or object holds.
+ * */
+final class ValueTable {
+    static final Object ABSENT = new Object();
+    private static final int INITIAL_CAPACITY = 4;
+
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private int size = 0;
+
+    Object get(String key) {
+        int mask = keys.length - 1;
+        for (int i = key.hashCode() & mask; ; i = (i + 1) & mask) {
+            String candidate = keys[i];
+            if (candidate == null) return ABSENT;
+            if (candidate == key || candidate.equals(key)) return values[i];
+        }
+    }
+
+    void put(String key, Object value) {
+        int i = indexOf(key);
+        if (keys[i] == null) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                grow();
+                i = indexOf(key);
+            }
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+    }
+
+    /*
+     * Overwrites an existing entry. Returns false, leaving the table unchanged, when the key is absent.
+     * */
+    boolean replace(String key, Object value) {
+        int i = indexOf(key);
+        if (keys[i] == null) return false;
+        values[i] = value;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(BiConsumer<String, Object> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) action.accept(keys[i], values[i]);
+        }
+    }
+
+    // Index of the key's entry, or of the empty slot where it would go.
+    private int indexOf(String key) {
+        int mask = keys.length - 1;
+        int i = key.hashCode() & mask;
+        while (keys[i] != null && !(keys[i] == key || keys[i].equals(key))) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+            int slot = indexOf(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+}
@@ -14,9 +14,14 @@ public class GenerateAst {
         }
         String outputDir = args[0];
 
+        /*
+         * Each type is "Name : constructor fields | other fields". Constructor fields are final unless marked var;
+         * the other fields are mutable state set after parsing (by lazy parsing or type inference, say).
+         * */
+
         defineAst(outputDir, "Expr", Arrays.asList(
                 "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
+                "Binary   : Expr left, Token operator, Expr right | LoxType operandType = LoxType.UNKNOWN",
                 "Grouping : Expr expression",
                 "Literal  : Object value",
                 "Logical  : Expr left, Token operator, Expr right",
@@ -32,14 +37,15 @@ public class GenerateAst {
         defineAst(outputDir, "Stmt", Arrays.asList(
                 "Block      : List<Stmt> statements",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> param, List<Stmt> body",
+                "Function   : Token name, List<Token> param, var List<Stmt> body | List<Token> deferred",
                 "Getter     : Token name, List<Stmt> body",
                 "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> functions",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
                 "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt statement",
-                "Return     : Token keyword, Expr value"
+                "While      : Token keyword, Expr condition, Stmt statement",
+                "Return     : Token keyword, Expr value",
+                "Import     : Token keyword, Token path, Token name"
         ));
     }
 
@@ -81,23 +87,33 @@ public class GenerateAst {
         writer.println("\t\t}");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldSpec) {
         writer.println(String.format("\tstatic class %s extends %s {", className, baseName));
-        String[] fields = fieldList.split(", ");
+        String[] parts = fieldSpec.split("\\|");
+        String[] fields = parts[0].trim().split(", ");
 
         // Fields.
         for (String field : fields) {
-            writer.println("\t\tfinal " + field + ";");
+            writer.println(field.startsWith("var ") ? "\t\t" + field.substring(4) + ";" : "\t\tfinal " + field + ";");
+        }
+        if (parts.length > 1) {
+            for (String field : parts[1].trim().split(", ")) {
+                writer.println("\t\t" + field + ";");
+            }
         }
         writer.println();
 
         // Constructor
-        writer.println(String.format("\t\tpublic %s(%s) {", className, fieldList));
+        String[] parameters = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            parameters[i] = fields[i].startsWith("var ") ? fields[i].substring(4) : fields[i];
+        }
+        writer.println(String.format("\t\tpublic %s(%s) {", className, String.join(", ", parameters)));
 
         /// Store parameters in fields.
 
-        for (String field : fields) {
-            String name = field.split(" ")[1];
+        for (String parameter : parameters) {
+            String name = parameter.split(" ")[1];
 
             writer.println(String.format("\t\t\tthis.%s = %s;", name, name));
         }
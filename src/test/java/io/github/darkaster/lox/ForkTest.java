@@ -0,0 +1,61 @@
+package io.github.darkaster.lox;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ForkTest {
+    private static final String PRELUDE = """
+            fun make() { var n = 0; fun inc() { n = n + 1; return n; } return inc; }
+            var inc = make();
+            class Box { init(n) { this.n = n; } get() { return this.n; } }
+            var box = Box(1);
+            """;
+
+    private static final String SCRIPT = """
+            print inc();
+            print inc();
+            box.n = 5;
+            box.label = "five";
+            print box.get() + inc();
+            print box.label;
+            """;
+
+    private static Interpreter prelude(int invocationThreshold) {
+        Lox.resetStatus(System.err);
+        Interpreter prelude = new Interpreter(BufferedSink.of(new ByteArrayOutputStream()));
+        prelude.setCompileThresholds(invocationThreshold, invocationThreshold);
+        Lox.execute(prelude, Lox.parse(PRELUDE));
+        return prelude;
+    }
+
+    private static String run(Interpreter prelude, String source) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferedSink sink = BufferedSink.of(out);
+        Interpreter fork = prelude.fork(sink);
+        Lox.execute(fork, Lox.parse(source));
+        sink.flush();
+        assertEquals(0, Lox.exitCode());
+        return out.toString();
+    }
+
+    private static void assertForksWriteTheirOwnCopies(int invocationThreshold) {
+        Interpreter prelude = prelude(invocationThreshold);
+        String expected = "1\n2\n8\nfive\n";
+        assertEquals(expected, run(prelude, SCRIPT));
+        assertEquals(expected, run(prelude, SCRIPT));
+        assertEquals("1\n1\n", run(prelude, "print inc(); print box.n;"));
+    }
+
+    @Test
+    void forksAssignCapturedVariablesAndFieldsOfTheBase() {
+        assertForksWriteTheirOwnCopies(0);
+    }
+
+    @Test
+    void compiledForksAssignCapturedVariablesAndFieldsOfTheBase() {
+        assertForksWriteTheirOwnCopies(1);
+    }
+}
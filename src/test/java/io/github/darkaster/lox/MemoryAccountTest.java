@@ -0,0 +1,52 @@
+package io.github.darkaster.lox;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemoryAccountTest {
+    // Each call holds half a megabyte in a local while it waits on the next: about 100 MB in all.
+    private static final String DEEP_CALLERS = """
+            fun grow(depth) {
+              var held = "x";
+              for (var i = 0; i < 19; i = i + 1) held = held + held;
+              if (depth > 0) grow(depth - 1);
+              return held;
+            }
+            grow(200);
+            """;
+
+    // Runs the script under a 20 MB limit and returns what it reported on stderr.
+    private static String runLimited(String source, int invocationThreshold) throws InterruptedException {
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int[] exitCode = new int[1];
+        Thread thread = new Thread(null, () -> {
+            Lox.resetStatus(new PrintStream(err, true));
+            Interpreter interpreter = new Interpreter();
+            interpreter.setMemoryAccount(new MemoryAccount(20_000_000));
+            interpreter.setCompileThresholds(invocationThreshold, invocationThreshold);
+            Lox.execute(interpreter, Lox.parse(source));
+            exitCode[0] = Lox.exitCode();
+        }, "memory-test", Lox.STACK_SIZE);
+        thread.start();
+        thread.join();
+        assertEquals(70, exitCode[0], err.toString());
+        return err.toString();
+    }
+
+    @Test
+    void localsOfSuspendedCallersCountTowardTheLimit() throws InterruptedException {
+        String err = runLimited(DEEP_CALLERS, 0);
+        assertTrue(err.contains("Memory limit"), err);
+    }
+
+    @Test
+    void compiledCallersCountTowardTheLimit() throws InterruptedException {
+        String err = runLimited(DEEP_CALLERS, 1);
+        assertTrue(err.contains("Memory limit"), err);
+    }
+}
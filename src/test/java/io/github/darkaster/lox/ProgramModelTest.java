@@ -0,0 +1,57 @@
+package io.github.darkaster.lox;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProgramModelTest {
+    private static ProgramModel model(String text) {
+        ProgramModel model = new ProgramModel(new Interpreter());
+        model.update(text);
+        return model;
+    }
+
+    // An edited model must match a fresh parse of the same text.
+    private static void assertSameAsFresh(String before, String after) {
+        ProgramModel edited = model(before);
+        edited.update(after);
+        ProgramModel fresh = model(after);
+        assertEquals(fresh.statements().size(), edited.statements().size());
+        assertEquals(fresh.diagnostics(), edited.diagnostics());
+    }
+
+    @Test
+    void editTurningTheRestOfALineIntoACommentReparsesTheNextUnit() {
+        assertSameAsFresh("print 1;\nprint 2; print 3;\n", "print 1;\n// 2; print 3;\n");
+        assertSameAsFresh("var a = 1; var b = 2; print a;", "var a = 1; //ar b = 2; print a;");
+    }
+
+    @Test
+    void unitStartingWithAMultiLineStringKeepsItsLine() {
+        assertSameAsFresh("\"str\";\n\"\nprint a; 1;\";\n\n", "\"str\";\n\"\nprint a; 2;\n\n");
+    }
+
+    @Test
+    void editInsideABrokenDeclarationOnlyReparsesItsNeighbourhood() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 1500; i++) {
+            source.append("fun f").append(i).append("(x) {\n  var y = x + ").append(i).append(";\n  return y;\n}\n");
+        }
+        String text = source.toString();
+        int at = text.indexOf("var y = x + 750;") + "var y = ".length();
+        String broken = text.substring(0, at) + "(" + text.substring(at);
+        ProgramModel model = model(broken);
+        assertEquals(1, model.diagnostics().size());
+
+        String edited = broken.substring(0, at + 1) + "x" + broken.substring(at + 1);
+        model.update(edited);
+        assertTrue(model.reparsed() <= 3, "re-parsed " + model.reparsed() + " units");
+        assertEquals(model(edited).diagnostics(), model.diagnostics());
+
+        model.update(text);
+        assertTrue(model.reparsed() <= 3, "re-parsed " + model.reparsed() + " units");
+        assertEquals(0, model.diagnostics().size());
+        assertEquals(1500, model.statements().size());
+    }
+}